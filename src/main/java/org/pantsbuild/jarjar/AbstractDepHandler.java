@@ -23,23 +23,28 @@ import java.util.*;
 abstract public class AbstractDepHandler implements DepHandler
 {
     protected final int level;
-    private final Set<List<Object>> seenIt = new HashSet<List<Object>>();
+
+    // Each distinct class name or classpath element gets an integer ID, and each edge seen is
+    // stored as the pair of IDs packed into a long.
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final LongHashSet seenIt = new LongHashSet();
     
     protected AbstractDepHandler(int level) {
         this.level = level;
     }
     
     public void handle(PathClass from, PathClass to) throws IOException {
-        List<Object> pair;
+        String fromName, toName;
         if (level == LEVEL_JAR) {
-            pair = createPair(from.getClassPath(), to.getClassPath());
+            fromName = from.getClassPath();
+            toName = to.getClassPath();
         } else {
-            pair = createPair(from.getClassName(), to.getClassName());
-        }
-        if (!seenIt.contains(pair)) {
-            seenIt.add(pair);
-            handle(pair.get(0).toString(), pair.get(1).toString());
+            fromName = from.getClassName();
+            toName = to.getClassName();
         }
+        long edge = ((long) idOf(fromName) << 32) | idOf(toName);
+        if (seenIt.add(edge))
+            handle(fromName, toName);
     }
 
     abstract protected void handle(String from, String to) throws IOException;
@@ -47,10 +52,12 @@ abstract public class AbstractDepHandler implements DepHandler
     public void handleStart() throws IOException { }
     public void handleEnd() throws IOException { }
 
-    private static List<Object> createPair(Object o1, Object o2) {
-        List<Object> list = new ArrayList<Object>(2);
-        list.add(o1);
-        list.add(o2);
-        return list;
+    private int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = ids.size();
+            ids.put(name, id);
+        }
+        return id;
     }
 }
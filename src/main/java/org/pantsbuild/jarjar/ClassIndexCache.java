@@ -0,0 +1,148 @@
+package org.pantsbuild.jarjar;
+
+import org.pantsbuild.jarjar.util.IoUtil;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Remembers the names of the classes in jar files between runs of {@link DepFind}, one file per
+ * jar in a directory of their own.
+ * <p>
+ * An entry is used while the jar keeps its size and modification time. If only the modification
+ * time has changed, the SHA-1 of the jar's contents is compared instead, and a match refreshes the
+ * entry. The names are stored sorted, each as the length of the prefix it shares with the
+ * previous one followed by the rest. Entries are replaced by renaming, so several processes can
+ * share a directory.
+ */
+class ClassIndexCache
+{
+    private static final int MAGIC = 0x4A4A4958;
+    private static final int VERSION = 1;
+
+    private final File dir;
+
+    public ClassIndexCache(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create index directory " + dir);
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the class names stored for a jar, or <code>null</code> if there are none or the jar
+     * has changed since.
+     */
+    public List<String> read(File jar) throws IOException {
+        File file = fileFor(jar);
+        if (!file.isFile())
+            return null;
+        List<String> names;
+        long modified;
+        byte[] hash = new byte[20];
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            if (!in.readUTF().equals(jar.getPath()) || in.readLong() != jar.length())
+                return null;
+            modified = in.readLong();
+            in.readFully(hash);
+            int count = in.readInt();
+            names = new ArrayList<String>(count);
+            String prev = "";
+            for (int i = 0; i < count; i++) {
+                int prefix = in.readUnsignedShort();
+                prev = prev.substring(0, prefix) + in.readUTF();
+                names.add(prev);
+            }
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+        if (modified != jar.lastModified()) {
+            if (!Arrays.equals(hash, hash(jar)))
+                return null;
+            write(jar, names);
+        }
+        return names;
+    }
+
+    /**
+     * Stores the class names of a jar.
+     */
+    public void write(File jar, List<String> names) throws IOException {
+        long modified = jar.lastModified();
+        byte[] hash = hash(jar);
+        List<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted);
+        File tmp = File.createTempFile("index", ".tmp", dir);
+        boolean complete = false;
+        try {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(jar.getPath());
+                out.writeLong(jar.length());
+                out.writeLong(modified);
+                out.write(hash);
+                out.writeInt(sorted.size());
+                String prev = "";
+                for (String name : sorted) {
+                    int prefix = 0;
+                    int max = Math.min(Math.min(prev.length(), name.length()), 0xFFFF);
+                    while (prefix < max && prev.charAt(prefix) == name.charAt(prefix))
+                        prefix++;
+                    out.writeShort(prefix);
+                    out.writeUTF(name.substring(prefix));
+                    prev = name;
+                }
+            } finally {
+                out.close();
+            }
+            IoUtil.rename(tmp, fileFor(jar));
+            complete = true;
+        } finally {
+            if (!complete)
+                tmp.delete();
+        }
+    }
+
+    private File fileFor(File jar) throws IOException {
+        return new File(dir, hex(sha1().digest(jar.getPath().getBytes("UTF-8"))) + ".idx");
+    }
+
+    private static byte[] hash(File jar) throws IOException {
+        MessageDigest digest = sha1();
+        InputStream in = new FileInputStream(jar);
+        try {
+            byte[] buf = new byte[0x10000];
+            for (int n; (n = in.read(buf)) >= 0; )
+                digest.update(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
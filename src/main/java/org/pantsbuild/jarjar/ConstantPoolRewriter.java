@@ -0,0 +1,162 @@
+package org.pantsbuild.jarjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.pantsbuild.jarjar.ConstantPoolUses.UnsupportedClassException;
+import org.pantsbuild.jarjar.util.ClassHeaderReader;
+import org.pantsbuild.jarjar.util.EntryStruct;
+
+/**
+ * Renames classes by rewriting the CONSTANT_Utf8 entries of their constant pool, copying fields,
+ * methods, code and attributes byte for byte.
+ * <p>
+ * Each Utf8 entry is mapped according to how the class uses it, see {@link ConstantPoolUses}, the
+ * same way {@link org.objectweb.asm.commons.ClassRemapper} maps it. Constant pool indices never change. Classes
+ * that cannot be handled exactly this way are left to ASM: those using one entry in two ways that
+ * map differently, containing attributes this does not know, belonging to a module, whose inner
+ * class names change, or calling a method whose string argument {@link MethodSignatureProcessor}
+ * rewrites.
+ */
+class ConstantPoolRewriter
+{
+    private static final byte[][] METHODS_WITH_SIGNATURE_ARGUMENT;
+    static {
+        METHODS_WITH_SIGNATURE_ARGUMENT =
+            new byte[MethodSignatureProcessor.METHOD_NAMES_WITH_PARAMS_TO_REWRITE.size()][];
+        int i = 0;
+        for (String name : MethodSignatureProcessor.METHOD_NAMES_WITH_PARAMS_TO_REWRITE)
+            METHODS_WITH_SIGNATURE_ARGUMENT[i++] = encode(name);
+    }
+
+    private final PackageRemapper pr;
+
+    public ConstantPoolRewriter(PackageRemapper pr) {
+        this.pr = pr;
+    }
+
+    /**
+     * Returns the remapped class, which is <code>struct.data</code> itself if nothing changed, or
+     * <code>null</code> if the class has to be remapped with ASM instead.
+     */
+    public byte[] rewrite(EntryStruct struct) {
+        try {
+            return new Rewrite(struct.getClassHeader()).run();
+        } catch (UnsupportedClassException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // Most likely a malformed class, which ASM reports better.
+            return null;
+        }
+    }
+
+    /**
+     * The state of rewriting a single class.
+     */
+    private class Rewrite extends ConstantPoolUses
+    {
+        Rewrite(ClassHeaderReader header) {
+            super(header);
+        }
+
+        byte[] run() throws IOException, UnsupportedClassException {
+            mark();
+
+            String[] mapped = new String[count];
+            boolean changed = false;
+            for (int i = 1; i < count; i++) {
+                int uses = getUses(i);
+                if (uses == 0)
+                    continue;
+                if (uses == NAME) {
+                    checkName(i);
+                    continue;
+                }
+                String value = header.getUtf8(i);
+                String result = null;
+                for (int use = NAME; use <= TYPE_SIGNATURE; use <<= 1) {
+                    if ((uses & use) == 0)
+                        continue;
+                    if (use == NAME)
+                        checkName(i);
+                    String s = map(use, value);
+                    if (result == null) {
+                        result = s;
+                    } else if (!result.equals(s)) {
+                        throw new UnsupportedClassException();
+                    }
+                }
+                if (!result.equals(value)) {
+                    mapped[i] = result;
+                    changed = true;
+                }
+            }
+            return changed ? write(mapped) : b;
+        }
+
+        private byte[] write(String[] mapped) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            int pos = 0;
+            for (int i = 1; i < count; i++) {
+                if (mapped[i] == null)
+                    continue;
+                int start = header.getItemOffset(i) - 1;
+                out.write(b, pos, start - pos);
+                out.writeByte(CONSTANT_UTF8);
+                out.writeUTF(mapped[i]);
+                pos = header.getUtf8Offset(i) + header.getUtf8Length(i);
+            }
+            out.write(b, pos, length - pos);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private String map(int use, String value) {
+            switch (use) {
+            case CLASS:
+                return pr.mapType(value);
+            case DESC:
+                return value.startsWith("(") ? pr.mapMethodDesc(value) : pr.mapDesc(value);
+            case VALUE:
+                return (String)pr.mapValue(value);
+            case SIGNATURE:
+                return pr.mapSignature(value, false);
+            case TYPE_SIGNATURE:
+                return pr.mapSignature(value, true);
+            default:
+                return value;
+            }
+        }
+
+        private void checkName(int index) throws UnsupportedClassException {
+            int off = header.getUtf8Offset(index);
+            int len = header.getUtf8Length(index);
+            for (byte[] name : METHODS_WITH_SIGNATURE_ARGUMENT) {
+                if (name.length != len)
+                    continue;
+                int i = 0;
+                while (i < len && b[off + i] == name[i])
+                    i++;
+                if (i == len)
+                    throw new UnsupportedClassException();
+            }
+        }
+
+        protected void checkInnerClass(String name, String outerName, String innerName)
+            throws UnsupportedClassException {
+            if (!innerName.equals(pr.mapInnerClassName(name, outerName, innerName)))
+                throw new UnsupportedClassException();
+        }
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
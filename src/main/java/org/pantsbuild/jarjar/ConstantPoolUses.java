@@ -0,0 +1,342 @@
+package org.pantsbuild.jarjar;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.objectweb.asm.commons.Remapper;
+import org.pantsbuild.jarjar.util.ClassHeaderReader;
+
+/**
+ * Works out how a class uses each of its CONSTANT_Utf8 entries: as a class name, descriptor,
+ * signature, string constant or plain name. Only the constant pool and the structure of the
+ * class file are read; code is skipped. Classes using an attribute this does not know, or
+ * belonging to a module, are rejected, since their entries cannot all be accounted for.
+ */
+class ConstantPoolUses
+{
+    static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    // How a Utf8 entry is used; an entry may be used in several ways.
+    static final int NAME = 1;
+    static final int CLASS = 2;
+    static final int DESC = 4;
+    static final int VALUE = 8;
+    static final int SIGNATURE = 16;
+    static final int TYPE_SIGNATURE = 32;
+
+    // Where an attribute occurs.
+    private static final int IN_CLASS = 0;
+    private static final int IN_FIELD = 1;
+    private static final int IN_METHOD = 2;
+    private static final int IN_CODE = 3;
+
+    private static final int ATTR_OTHER = 0;
+    private static final int ATTR_CODE = 1;
+    private static final int ATTR_SIGNATURE = 2;
+    private static final int ATTR_LOCAL_VARIABLES = 3;
+    private static final int ATTR_LOCAL_VARIABLE_TYPES = 4;
+    private static final int ATTR_INNER_CLASSES = 5;
+    private static final int ATTR_METHOD_PARAMETERS = 6;
+    private static final int ATTR_ANNOTATIONS = 7;
+    private static final int ATTR_PARAMETER_ANNOTATIONS = 8;
+    private static final int ATTR_TYPE_ANNOTATIONS = 9;
+    private static final int ATTR_ANNOTATION_DEFAULT = 10;
+
+    private static final Map<String, Integer> ATTRIBUTES = new HashMap<String, Integer>();
+    static {
+        // These only refer to constant pool entries other than Utf8, or to nothing at all.
+        for (String name : new String[] {
+                "ConstantValue", "Exceptions", "EnclosingMethod", "Synthetic", "Deprecated",
+                "SourceFile", "SourceDebugExtension", "LineNumberTable", "StackMapTable",
+                "BootstrapMethods", "NestHost", "NestMembers" })
+            ATTRIBUTES.put(name, ATTR_OTHER);
+        ATTRIBUTES.put("Code", ATTR_CODE);
+        ATTRIBUTES.put("Signature", ATTR_SIGNATURE);
+        ATTRIBUTES.put("LocalVariableTable", ATTR_LOCAL_VARIABLES);
+        ATTRIBUTES.put("LocalVariableTypeTable", ATTR_LOCAL_VARIABLE_TYPES);
+        ATTRIBUTES.put("InnerClasses", ATTR_INNER_CLASSES);
+        ATTRIBUTES.put("MethodParameters", ATTR_METHOD_PARAMETERS);
+        ATTRIBUTES.put("RuntimeVisibleAnnotations", ATTR_ANNOTATIONS);
+        ATTRIBUTES.put("RuntimeInvisibleAnnotations", ATTR_ANNOTATIONS);
+        ATTRIBUTES.put("RuntimeVisibleParameterAnnotations", ATTR_PARAMETER_ANNOTATIONS);
+        ATTRIBUTES.put("RuntimeInvisibleParameterAnnotations", ATTR_PARAMETER_ANNOTATIONS);
+        ATTRIBUTES.put("RuntimeVisibleTypeAnnotations", ATTR_TYPE_ANNOTATIONS);
+        ATTRIBUTES.put("RuntimeInvisibleTypeAnnotations", ATTR_TYPE_ANNOTATIONS);
+        ATTRIBUTES.put("AnnotationDefault", ATTR_ANNOTATION_DEFAULT);
+    }
+
+    protected final ClassHeaderReader header;
+    protected final byte[] b;
+    protected final int length;
+    protected final int count;
+    private final int[] uses;
+
+    public ConstantPoolUses(ClassHeaderReader header) {
+        this.header = header;
+        this.b = header.getBuffer();
+        this.length = header.getLength();
+        this.count = header.getConstantPoolCount();
+        this.uses = new int[count];
+    }
+
+    /**
+     * Classifies the entries, see {@link #getUses}.
+     *
+     * @throws UnsupportedClassException if the class cannot be classified completely
+     */
+    public void mark() throws IOException, UnsupportedClassException {
+        markConstantPool();
+        markClassFile();
+    }
+
+    /**
+     * Returns the ways a Utf8 entry is used, as a combination of {@link #NAME}, {@link #CLASS},
+     * {@link #DESC}, {@link #VALUE}, {@link #SIGNATURE} and {@link #TYPE_SIGNATURE}, or 0 if the
+     * entry is not used at all or is not a Utf8 entry.
+     */
+    public int getUses(int index) {
+        return uses[index];
+    }
+
+    /**
+     * Passes every class name, descriptor and signature found by {@link #mark} to the remapper,
+     * along with the string constants if <code>values</code> is set. The results are ignored.
+     */
+    public void accept(Remapper remapper, boolean values) throws IOException {
+        for (int i = 1; i < count; i++) {
+            int use = values ? uses[i] : uses[i] & ~VALUE;
+            if ((use & ~NAME) == 0)
+                continue;
+            String value = header.getUtf8(i);
+            if ((use & CLASS) != 0)
+                remapper.mapType(value);
+            if ((use & DESC) != 0) {
+                if (value.startsWith("("))
+                    remapper.mapMethodDesc(value);
+                else
+                    remapper.mapDesc(value);
+            }
+            if ((use & VALUE) != 0)
+                remapper.mapValue(value);
+            if ((use & SIGNATURE) != 0)
+                remapper.mapSignature(value, false);
+            if ((use & TYPE_SIGNATURE) != 0)
+                remapper.mapSignature(value, true);
+        }
+    }
+
+    private void markConstantPool() throws UnsupportedClassException {
+        for (int i = 1; i < count; i++) {
+            int off = header.getItemOffset(i);
+            switch (header.getConstantPoolTag(i)) {
+            case CONSTANT_CLASS:
+                mark(u2(off), CLASS);
+                break;
+            case CONSTANT_STRING:
+                mark(u2(off), VALUE);
+                break;
+            case CONSTANT_NAME_AND_TYPE:
+                mark(u2(off), NAME);
+                mark(u2(off + 2), DESC);
+                break;
+            case CONSTANT_METHOD_TYPE:
+                mark(u2(off), DESC);
+                break;
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                throw new UnsupportedClassException();
+            }
+        }
+    }
+
+    private void markClassFile() throws IOException, UnsupportedClassException {
+        int p = header.getConstantPoolEnd() + 6;
+        p += 2 + 2 * u2(p); // interfaces
+        for (int members = 0; members < 2; members++) {
+            int memberCount = u2(p);
+            p += 2;
+            for (int i = 0; i < memberCount; i++) {
+                mark(u2(p + 2), NAME);
+                mark(u2(p + 4), DESC);
+                p = markAttributes(p + 6, (members == 0) ? IN_FIELD : IN_METHOD);
+            }
+        }
+        p = markAttributes(p, IN_CLASS);
+        if (p != length)
+            throw new UnsupportedClassException();
+    }
+
+    private int markAttributes(int p, int context) throws IOException, UnsupportedClassException {
+        int attributeCount = u2(p);
+        p += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            int nameIndex = u2(p);
+            int start = p + 6;
+            int end = start + u4(p + 2);
+            if (end > length || end < start)
+                throw new UnsupportedClassException();
+            mark(nameIndex, NAME);
+            Integer kind = ATTRIBUTES.get(header.getUtf8(nameIndex));
+            if (kind == null)
+                throw new UnsupportedClassException();
+            switch (kind.intValue()) {
+            case ATTR_CODE:
+                int q = start + 8 + u4(start + 4);
+                q += 2 + 8 * u2(q); // exception table
+                markAttributes(q, IN_CODE);
+                break;
+            case ATTR_SIGNATURE:
+                mark(u2(start), (context == IN_FIELD) ? TYPE_SIGNATURE : SIGNATURE);
+                break;
+            case ATTR_LOCAL_VARIABLES:
+            case ATTR_LOCAL_VARIABLE_TYPES:
+                for (int j = 0, n = u2(start); j < n; j++) {
+                    int entry = start + 2 + 10 * j;
+                    mark(u2(entry + 4), NAME);
+                    mark(u2(entry + 6),
+                         (kind.intValue() == ATTR_LOCAL_VARIABLES) ? DESC : TYPE_SIGNATURE);
+                }
+                break;
+            case ATTR_INNER_CLASSES:
+                for (int j = 0, n = u2(start); j < n; j++)
+                    markInnerClass(start + 2 + 8 * j);
+                break;
+            case ATTR_METHOD_PARAMETERS:
+                for (int j = 0, n = b[start] & 0xFF; j < n; j++)
+                    mark(u2(start + 1 + 4 * j), NAME);
+                break;
+            case ATTR_ANNOTATIONS:
+                markAnnotations(start);
+                break;
+            case ATTR_PARAMETER_ANNOTATIONS:
+                for (int j = 0, n = b[start] & 0xFF, r = start + 1; j < n; j++)
+                    r = markAnnotations(r);
+                break;
+            case ATTR_TYPE_ANNOTATIONS:
+                for (int j = 0, n = u2(start), r = start + 2; j < n; j++)
+                    r = markAnnotation(skipTypePath(skipTarget(r)));
+                break;
+            case ATTR_ANNOTATION_DEFAULT:
+                markElementValue(start);
+                break;
+            }
+            p = end;
+        }
+        return p;
+    }
+
+    private void markInnerClass(int p) throws IOException, UnsupportedClassException {
+        int innerNameIndex = u2(p + 4);
+        if (innerNameIndex == 0)
+            return;
+        mark(innerNameIndex, NAME);
+        checkInnerClass(className(u2(p)), className(u2(p + 2)), header.getUtf8(innerNameIndex));
+    }
+
+    /**
+     * Called for each entry of an InnerClasses attribute that has a simple name, to reject the
+     * class if need be. Does nothing by default.
+     */
+    protected void checkInnerClass(String name, String outerName, String innerName)
+        throws UnsupportedClassException {
+    }
+
+    private String className(int index) throws IOException {
+        return (index == 0) ? null : header.getUtf8(u2(header.getItemOffset(index)));
+    }
+
+    private int markAnnotations(int p) throws UnsupportedClassException {
+        int n = u2(p);
+        p += 2;
+        for (int i = 0; i < n; i++)
+            p = markAnnotation(p);
+        return p;
+    }
+
+    private int markAnnotation(int p) throws UnsupportedClassException {
+        mark(u2(p), DESC);
+        int pairs = u2(p + 2);
+        p += 4;
+        for (int i = 0; i < pairs; i++) {
+            mark(u2(p), NAME);
+            p = markElementValue(p + 2);
+        }
+        return p;
+    }
+
+    private int markElementValue(int p) throws UnsupportedClassException {
+        int tag = b[p++];
+        switch (tag) {
+        case 'B': case 'C': case 'D': case 'F': case 'I': case 'J': case 'S': case 'Z':
+            return p + 2;
+        case 's':
+            mark(u2(p), VALUE);
+            return p + 2;
+        case 'e':
+            mark(u2(p), DESC);
+            mark(u2(p + 2), NAME);
+            return p + 4;
+        case 'c':
+            mark(u2(p), DESC);
+            return p + 2;
+        case '@':
+            return markAnnotation(p);
+        case '[':
+            int n = u2(p);
+            p += 2;
+            for (int i = 0; i < n; i++)
+                p = markElementValue(p);
+            return p;
+        default:
+            throw new UnsupportedClassException();
+        }
+    }
+
+    private int skipTarget(int p) throws UnsupportedClassException {
+        int target = b[p++] & 0xFF;
+        switch (target) {
+        case 0x13: case 0x14: case 0x15:
+            return p;
+        case 0x00: case 0x01: case 0x16:
+            return p + 1;
+        case 0x10: case 0x11: case 0x12: case 0x17:
+        case 0x42: case 0x43: case 0x44: case 0x45: case 0x46:
+            return p + 2;
+        case 0x47: case 0x48: case 0x49: case 0x4A: case 0x4B:
+            return p + 3;
+        case 0x40: case 0x41:
+            return p + 2 + 6 * u2(p);
+        default:
+            throw new UnsupportedClassException();
+        }
+    }
+
+    private int skipTypePath(int p) {
+        return p + 1 + 2 * (b[p] & 0xFF);
+    }
+
+    private void mark(int index, int use) throws UnsupportedClassException {
+        if (index <= 0 || index >= count || header.getConstantPoolTag(index) != CONSTANT_UTF8)
+            throw new UnsupportedClassException();
+        uses[index] |= use;
+    }
+
+    protected int u2(int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private int u4(int off) {
+        return (u2(off) << 16) | u2(off + 2);
+    }
+
+    static class UnsupportedClassException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
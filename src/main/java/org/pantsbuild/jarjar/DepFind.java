@@ -19,62 +19,594 @@ package org.pantsbuild.jarjar;
 import org.pantsbuild.jarjar.util.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.ZipEntry;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
 
 public class DepFind
 {
+    private static final int PENDING_PER_THREAD = 4;
+
     private File curDir = new File(System.getProperty("user.dir"));
+    private int parallelism = 1;
+    private int level = DepHandler.LEVEL_CLASS;
+    private File indexDir;
 
     public void setCurrentDirectory(File curDir) {
         this.curDir = curDir;
     }
 
+    /**
+     * Sets the number of threads used to read classes. Each classpath element is read by a single
+     * worker, and the results are passed to the handler on the calling thread in classpath order,
+     * so the handler need not be thread-safe and sees the same calls as with a single thread.
+     *
+     * @param parallelism the number of worker threads, or 1 to read classes on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the level the handler reports dependencies at. At {@link DepHandler#LEVEL_JAR} only
+     * the first dependency of each classpath element on another is passed to the handler, and
+     * an element is no longer read once it is known to depend on every other.
+     *
+     * @param level {@link DepHandler#LEVEL_CLASS} or {@link DepHandler#LEVEL_JAR}
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets a directory in which to keep the names of the classes in each jar file of the
+     * <code>to</code> classpath, so that later runs only read the jars that have changed. The
+     * directory is created if necessary and may be shared between processes.
+     *
+     * @param indexDir the directory, or <code>null</code> to read every jar on each run
+     */
+    public void setIndexDirectory(File indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * Reports the dependencies of the classes on <code>from</code> on the classes of other
+     * classpath elements on <code>to</code>. When both are the same classpath each class is read
+     * only once, and a class that refers to another several times is reported only once.
+     */
     public void run(String from, String to, DepHandler handler) throws IOException {
+        if (level == DepHandler.LEVEL_JAR) {
+            findJars(from, to, handler);
+            return;
+        }
+        if (from.equals(to)) {
+            scan(from, handler);
+            return;
+        }
+        findClasses(from, to, handler);
+    }
+
+    /**
+     * Builds the index of <code>to</code>, then reads the classes of <code>from</code>.
+     */
+    private void findClasses(String from, String to, DepHandler handler) throws IOException {
+        ExecutorService executor = null;
+        if (parallelism > 1)
+            executor = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
         try {
-            ClassHeaderReader header = new ClassHeaderReader();
             Map<String, String> classes = new HashMap<String, String>();
+            ClassIndexCache cache = createIndexCache();
             ClassPathIterator cp = new ClassPathIterator(curDir, to, null);
             try {
-              while (cp.hasNext()) {
-                ClassPathEntry entry = cp.next();
-                InputStream in = entry.openStream();
-                try {
-                  header.read(in);
-                  classes.put(header.getClassName(), entry.getSource());
-                } catch (Exception e) {
-                  System.err.println("Error reading " + entry.getName() + ": " + e.getMessage());
-                } finally {
-                  in.close();
-                }
-              }
+                List<Shard> shards = new ArrayList<Shard>();
+                for (List<ClassPathEntry> element : split(cp))
+                    shards.add(new IndexShard(element, classes, cache));
+                runShards(executor, shards);
             } finally {
-              cp.close();
+                cp.close();
             }
 
             handler.handleStart();
             cp = new ClassPathIterator(curDir, from, null);
             try {
-              while (cp.hasNext()) {
-                ClassPathEntry entry = cp.next();
-                InputStream in = entry.openStream();
+                List<Shard> shards = new ArrayList<Shard>();
+                for (List<ClassPathEntry> element : split(cp))
+                    shards.add(new FindShard(element, classes, handler));
+                runShards(executor, shards);
+            } finally {
+                cp.close();
+            }
+            handler.handleEnd();
+        } catch (RuntimeIOException e) {
+            throw (IOException)e.getCause();
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads every class of the classpath once, collecting the class index along with the names
+     * each class refers to, and resolves the references against the complete index afterwards.
+     */
+    private void scan(String cp, DepHandler handler) throws IOException {
+        ExecutorService executor = null;
+        if (parallelism > 1)
+            executor = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+        try {
+            Map<String, String> classes = new HashMap<String, String>();
+            Map<String, String> shared = new HashMap<String, String>();
+            List<Object> refs = new ArrayList<Object>();
+            ClassPathIterator it = new ClassPathIterator(curDir, cp, null);
+            try {
+                List<Shard> shards = new ArrayList<Shard>();
+                for (List<ClassPathEntry> element : split(it))
+                    shards.add(new ScanShard(element, classes, shared, refs));
+                runShards(executor, shards);
+            } finally {
+                it.close();
+            }
+
+            handler.handleStart();
+            for (int i = 0; i < refs.size(); i += 2) {
+                PathClass from = (PathClass) refs.get(i);
+                for (String key : (String[]) refs.get(i + 1)) {
+                    String source = classes.get(key);
+                    if (source != null && !source.equals(from.getClassPath()))
+                        handler.handle(from, new PathClass(source, key));
+                }
+            }
+            handler.handleEnd();
+        } catch (RuntimeIOException e) {
+            throw (IOException)e.getCause();
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the dependencies between classpath elements. Only the constant pool of each class is
+     * read, and each name is looked up once per element. Unless both classpaths are the same, the
+     * index is built first so that an element can be abandoned as soon as it depends on every
+     * element of <code>to</code>; otherwise the elements are resolved once all are read.
+     */
+    private void findJars(String from, String to, DepHandler handler) throws IOException {
+        ExecutorService executor = null;
+        if (parallelism > 1)
+            executor = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+        try {
+            boolean scan = from.equals(to);
+            Map<String, String> classes = new HashMap<String, String>();
+            Set<String> sources = null;
+            ClassPathIterator cp;
+            if (!scan) {
+                ClassIndexCache cache = createIndexCache();
+                cp = new ClassPathIterator(curDir, to, null);
                 try {
-                  new ClassReader(in).accept(
-                      new DepFindVisitor(classes, entry.getSource(), handler),
-                      ClassReader.SKIP_DEBUG);
-                } catch (Exception e) {
-                  System.err.println("Error reading " + entry.getName() + ": " + e.getMessage());
+                    List<Shard> shards = new ArrayList<Shard>();
+                    for (List<ClassPathEntry> element : split(cp))
+                        shards.add(new IndexShard(element, classes, cache));
+                    runShards(executor, shards);
                 } finally {
-                  in.close();
+                    cp.close();
+                }
+                sources = new HashSet<String>(classes.values());
+            }
+
+            handler.handleStart();
+            cp = new ClassPathIterator(curDir, from, null);
+            try {
+                List<Shard> shards = new ArrayList<Shard>();
+                for (List<ClassPathEntry> element : split(cp))
+                    shards.add(new JarShard(element, classes, sources, handler));
+                runShards(executor, shards);
+                if (scan) {
+                    for (Shard shard : shards)
+                        ((JarShard) shard).resolve();
                 }
-              }
             } finally {
-              cp.close();
+                cp.close();
             }
             handler.handleEnd();
         } catch (RuntimeIOException e) {
             throw (IOException)e.getCause();
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns whether a class is added to the index. Every modular jar has its own
+     * <code>module-info</code> and each part of a split package its own <code>package-info</code>,
+     * so indexing them would resolve each one's reference to its own name to another element.
+     */
+    private static boolean isIndexed(String name) {
+        return !name.equals("module-info") && !name.equals("package-info")
+            && !name.endsWith("/package-info");
+    }
+
+    private ClassIndexCache createIndexCache() throws IOException {
+        return (indexDir != null) ? new ClassIndexCache(indexDir) : null;
+    }
+
+    /**
+     * Groups the entries of a classpath by the element they come from.
+     */
+    private static List<List<ClassPathEntry>> split(ClassPathIterator cp) throws IOException {
+        List<List<ClassPathEntry>> elements = new ArrayList<List<ClassPathEntry>>();
+        List<ClassPathEntry> element = null;
+        String source = null;
+        while (cp.hasNext()) {
+            ClassPathEntry entry = cp.next();
+            String entrySource = entry.getSource();
+            if (element == null || !entrySource.equals(source)) {
+                element = new ArrayList<ClassPathEntry>();
+                elements.add(element);
+                source = entrySource;
+            }
+            element.add(entry);
+        }
+        return elements;
+    }
+
+    /**
+     * Reads the shards on the worker threads and finishes them on the calling thread in order,
+     * keeping a bounded number in flight. Without an executor each shard is read and finished in
+     * turn on the calling thread.
+     */
+    private void runShards(ExecutorService executor, List<Shard> shards) throws IOException {
+        LinkedList<Future<Shard>> pending = new LinkedList<Future<Shard>>();
+        try {
+            for (Shard shard : shards) {
+                if (executor == null) {
+                    shard.call();
+                    shard.print();
+                    shard.finish();
+                    continue;
+                }
+                pending.add(executor.submit(shard));
+                while (pending.size() >= parallelism * PENDING_PER_THREAD)
+                    finish(pending.removeFirst());
+            }
+            while (!pending.isEmpty())
+                finish(pending.removeFirst());
+        } finally {
+            for (Future<Shard> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    private static void finish(Future<Shard> future) throws IOException {
+        Shard shard;
+        try {
+            shard = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading classes");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+        shard.print();
+        shard.finish();
+    }
+
+    /**
+     * The classes of one classpath element. They are read on a worker thread, which only records
+     * what it finds; {@link #finish} then applies it on the calling thread.
+     */
+    private static abstract class Shard implements Callable<Shard>
+    {
+        private final List<ClassPathEntry> entries;
+        final List<String> errors = new ArrayList<String>();
+
+        Shard(List<ClassPathEntry> entries) {
+            this.entries = entries;
+        }
+
+        public Shard call() throws IOException {
+            for (ClassPathEntry entry : entries) {
+                if (isDone())
+                    break;
+                InputStream in = entry.openStream();
+                try {
+                    read(entry, in);
+                } catch (Exception e) {
+                    error(entry, e);
+                } finally {
+                    in.close();
+                }
+            }
+            return this;
+        }
+
+        void error(ClassPathEntry entry, Exception e) {
+            errors.add("Error reading " + entry.getName() + ": " + e.getMessage());
+        }
+
+        void print() {
+            for (String error : errors)
+                System.err.println(error);
+        }
+
+        /**
+         * Returns whether the remaining classes can be skipped.
+         */
+        boolean isDone() {
+            return false;
+        }
+
+        abstract void read(ClassPathEntry entry, InputStream in) throws IOException;
+
+        abstract void finish() throws IOException;
+    }
+
+    /**
+     * Reads the names of the classes in one classpath element and adds them to the index.
+     */
+    private static class IndexShard extends Shard
+    {
+        private final Map<String, String> classes;
+        private final ClassIndexCache cache;
+        private final String source;
+        private final List<String> names = new ArrayList<String>();
+
+        IndexShard(List<ClassPathEntry> entries, Map<String, String> classes,
+                   ClassIndexCache cache) throws IOException {
+            super(entries);
+            this.classes = classes;
+            this.source = entries.get(0).getSource();
+            this.cache = (cache != null && new File(source).isFile()) ? cache : null;
+        }
+
+        public Shard call() throws IOException {
+            if (cache == null)
+                return super.call();
+            File jar = new File(source);
+            List<String> cached = cache.read(jar);
+            if (cached != null) {
+                names.addAll(cached);
+                return this;
+            }
+            super.call();
+            if (errors.isEmpty())
+                cache.write(jar, names);
+            return this;
+        }
+
+        void read(ClassPathEntry entry, InputStream in) throws IOException {
+            ClassHeaderReader header = new ClassHeaderReader();
+            header.read(in);
+            names.add(header.getClassName());
+        }
+
+        void finish() {
+            for (String name : names) {
+                if (isIndexed(name))
+                    classes.put(name, source);
+            }
+        }
+    }
+
+    /**
+     * Reads both the name of each class in one classpath element and the names it refers to.
+     * Once finished the class is in the index, and the class followed by its references is
+     * appended to <code>refs</code>. Equal names are replaced by the copy in <code>shared</code>
+     * so that each is held only once however many classes refer to it.
+     */
+    private static class ScanShard extends Shard
+    {
+        private final Map<String, String> classes;
+        private final Map<String, String> shared;
+        private final List<Object> refs;
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> sources = new ArrayList<String>();
+        private final List<Object> found = new ArrayList<Object>();
+
+        ScanShard(List<ClassPathEntry> entries, Map<String, String> classes,
+                  Map<String, String> shared, List<Object> refs) {
+            super(entries);
+            this.classes = classes;
+            this.shared = shared;
+            this.refs = refs;
+        }
+
+        void read(ClassPathEntry entry, InputStream in) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            IoUtil.pipe(in, baos, new byte[0x2000]);
+            byte[] data = baos.toByteArray();
+            String source = entry.getSource();
+            try {
+                ClassHeaderReader header = new ClassHeaderReader();
+                header.read(data);
+                names.add(header.getClassName());
+                sources.add(source);
+            } catch (Exception e) {
+                error(entry, e);
+                return;
+            }
+            ClassReader reader = new ClassReader(data);
+            ReferenceCollector collector = new ReferenceCollector();
+            reader.accept(new ClassRemapper(new EmptyClassVisitor(), collector),
+                          ClassReader.SKIP_DEBUG);
+            found.add(new PathClass(source, reader.getClassName()));
+            found.add(collector.refs.toArray(new String[collector.refs.size()]));
+        }
+
+        void finish() {
+            for (int i = 0; i < names.size(); i++) {
+                if (isIndexed(names.get(i)))
+                    classes.put(names.get(i), sources.get(i));
+            }
+            for (int i = 0; i < found.size(); i += 2) {
+                String[] keys = (String[]) found.get(i + 1);
+                for (int j = 0; j < keys.length; j++) {
+                    String key = shared.get(keys[j]);
+                    if (key == null)
+                        shared.put(keys[j], keys[j]);
+                    else
+                        keys[j] = key;
+                }
+                refs.add(found.get(i));
+                refs.add(keys);
+            }
         }
     }
+
+    /**
+     * Reads the names referred to by the classes of one classpath element, in the order first
+     * seen, and finds the elements of <code>to</code> that they belong to. Without the set of
+     * those elements the index is still being built, so the classes of this element are only
+     * added to it and the names are resolved later by {@link #resolve}.
+     */
+    private static class JarShard extends Shard
+    {
+        private final Map<String, String> classes;
+        private final Set<String> sources;
+        private final DepHandler handler;
+        private final String source;
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, String> refs = new LinkedHashMap<String, String>();
+        private final Set<String> targets = new HashSet<String>();
+        private final List<PathClass> found = new ArrayList<PathClass>();
+        private int remaining;
+
+        JarShard(List<ClassPathEntry> entries, Map<String, String> classes, Set<String> sources,
+                 DepHandler handler) throws IOException {
+            super(entries);
+            this.classes = classes;
+            this.sources = sources;
+            this.handler = handler;
+            this.source = entries.get(0).getSource();
+            if (sources != null)
+                remaining = sources.contains(source) ? sources.size() - 1 : sources.size();
+        }
+
+        boolean isDone() {
+            return sources != null && remaining == 0;
+        }
+
+        void read(ClassPathEntry entry, InputStream in) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            IoUtil.pipe(in, baos, new byte[0x2000]);
+            byte[] data = baos.toByteArray();
+            ClassHeaderReader header = new ClassHeaderReader();
+            header.read(data);
+            final String name = header.getClassName();
+            names.add(name);
+            Remapper collector = new Remapper() {
+                public String map(String key) {
+                    if (!refs.containsKey(key)) {
+                        refs.put(key, name);
+                        if (sources != null)
+                            resolve(name, key);
+                    }
+                    return null;
+                }
+            };
+            ConstantPoolUses uses = new ConstantPoolUses(header);
+            try {
+                uses.mark();
+            } catch (ConstantPoolUses.UnsupportedClassException e) {
+                new ClassReader(data).accept(
+                    new ClassRemapper(new EmptyClassVisitor(), collector), ClassReader.SKIP_DEBUG);
+                return;
+            }
+            uses.accept(collector, false);
+        }
+
+        void finish() throws IOException {
+            if (sources == null) {
+                for (String name : names) {
+                    if (isIndexed(name))
+                        classes.put(name, source);
+                }
+            } else {
+                report();
+            }
+        }
+
+        /**
+         * Resolves the names read against the completed index and reports the results.
+         */
+        void resolve() throws IOException {
+            for (Map.Entry<String, String> ref : refs.entrySet())
+                resolve(ref.getValue(), ref.getKey());
+            report();
+        }
+
+        private void report() throws IOException {
+            for (int i = 0; i < found.size(); i += 2)
+                handler.handle(found.get(i), found.get(i + 1));
+        }
+
+        private void resolve(String name, String key) {
+            String other = classes.get(key);
+            if (other != null && !other.equals(source) && targets.add(other)) {
+                found.add(new PathClass(source, name));
+                found.add(new PathClass(other, key));
+                remaining--;
+            }
+        }
+    }
+
+    /**
+     * Collects the names a class refers to, in the order first seen.
+     */
+    private static class ReferenceCollector extends Remapper
+    {
+        private final Set<String> refs = new LinkedHashSet<String>();
+
+        public String map(String key) {
+            refs.add(key);
+            return null;
+        }
+    }
+
+    /**
+     * Records the dependencies found in one classpath element and replays them to the handler.
+     */
+    private static class FindShard extends Shard implements DepHandler
+    {
+        private final Map<String, String> classes;
+        private final DepHandler handler;
+        private final List<PathClass> found = new ArrayList<PathClass>();
+
+        FindShard(List<ClassPathEntry> entries, Map<String, String> classes, DepHandler handler) {
+            super(entries);
+            this.classes = classes;
+            this.handler = handler;
+        }
+
+        void read(ClassPathEntry entry, InputStream in) throws IOException {
+            new ClassReader(in).accept(
+                new DepFindVisitor(classes, entry.getSource(), this), ClassReader.SKIP_DEBUG);
+        }
+
+        void finish() throws IOException {
+            for (int i = 0; i < found.size(); i += 2)
+                handler.handle(found.get(i), found.get(i + 1));
+        }
+
+        public void handle(PathClass from, PathClass to) {
+            found.add(from);
+            found.add(to);
+        }
+
+        public void handleStart() { }
+        public void handleEnd() { }
+    }
 }
@@ -19,11 +19,13 @@ package org.pantsbuild.jarjar;
 import org.pantsbuild.jarjar.util.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-class ExcludeProcessor implements JarProcessor
+class ExcludeProcessor implements JarProcessor, JarEntryFilter
 {
     private final Set<String> excludes;
     private final boolean verbose;
+    private final AtomicLong count = new AtomicLong();
 
     public ExcludeProcessor(Set<String> excludes, boolean verbose) {
         this.excludes = excludes;
@@ -31,10 +33,24 @@ class ExcludeProcessor implements JarProcessor
     }
 
     public boolean process(EntryStruct struct) throws IOException {
-        boolean toKeep = !excludes.contains(struct.name);
-        if (verbose && !toKeep)
-            System.err.println("Excluding " + struct.name);
+        return accept(struct.name);
+    }
+
+    public boolean accept(String name) {
+        boolean toKeep = !excludes.contains(name);
+        if (!toKeep) {
+            count.incrementAndGet();
+            if (verbose)
+                System.err.println("Excluding " + name);
+        }
         return toKeep;
     }
+
+    /**
+     * Describes how many entries were excluded.
+     */
+    public String toString() {
+        return "Excluded " + count + " classes";
+    }
 }
     
@@ -30,7 +30,11 @@ public class JarJarMojo extends AbstractMojo
     private File rulesFile;
     private String rules;
     private boolean verbose;
-    
+    private int parallelism = 1;
+    private boolean shrinkMembers;
+    private boolean pipeline;
+    private String compression;
+
     public void execute() throws MojoExecutionException {
         if (!((rulesFile == null || !rulesFile.exists()) ^ (rules == null)))
             throw new MojoExecutionException("Exactly one of rules or rulesFile is required");
@@ -43,11 +47,19 @@ public class JarJarMojo extends AbstractMojo
                 patterns = RulesFileParser.parse(rulesFile);
             }
             // TODO: refactor with Main.java
-            MainProcessor proc = new MainProcessor(patterns, verbose, true);
-            StandaloneJarProcessor.run(fromJar, toJar, proc);
-            proc.strip(toJar);
+            MainProcessor proc = new MainProcessor(patterns, verbose, true, null, shrinkMembers);
+            StandaloneJarProcessor jarProcessor = new StandaloneJarProcessor(proc);
+            jarProcessor.setParallelism(parallelism);
+            jarProcessor.setPipelined(pipeline);
+            if (compression != null)
+                jarProcessor.setCompressionPolicy(CompressionPolicy.parse(compression));
+            proc.analyze(fromJar, parallelism);
+            jarProcessor.run(fromJar, toJar);
+            proc.printStatistics();
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
         }
     }
 }
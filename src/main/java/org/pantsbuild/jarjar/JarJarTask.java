@@ -17,14 +17,22 @@
 package org.pantsbuild.jarjar;
 
 import org.pantsbuild.jarjar.util.*;
-import java.io.File;
-import java.io.IOException;
 import java.util.*;
 import org.apache.tools.ant.BuildException;
 
 public class JarJarTask extends AntJarProcessor
 {
     private List<PatternElement> patterns = new ArrayList<PatternElement>();
+    private boolean shrinkMembers;
+    private MainProcessor proc;
+
+    /**
+     * Sets whether keep rules also remove the unreachable fields and methods of the classes they
+     * keep.
+     */
+    public void setShrinkMembers(boolean shrinkMembers) {
+        this.shrinkMembers = shrinkMembers;
+    }
 
     public void addConfiguredRule(Rule rule) {
         if (rule.getPattern() == null || rule.getResult() == null)
@@ -45,17 +53,31 @@ public class JarJarTask extends AntJarProcessor
     }
 
     public void execute() throws BuildException {
-        MainProcessor proc = new MainProcessor(patterns, verbose, false);
-        execute(proc);
+        // Ant cleans up after each pass over the inputs, and makes two passes for some manifest
+        // settings, so the processor has to outlive cleanHelper.
+        MainProcessor proc = new MainProcessor(patterns, verbose, false, null, shrinkMembers);
+        this.proc = proc;
         try {
-            proc.strip(getDestFile());
-        } catch (IOException e) {
-            throw new BuildException(e);
+            execute(proc);
+        } finally {
+            this.proc = null;
         }
+        proc.printStatistics();
+    }
+
+    // The inputs are only known to Ant, so rather than analyzing them ahead, entries are held
+    // back until the keep rules have seen every class.
+    protected boolean isDeferred() {
+        return proc.hasKeepRules();
+    }
+
+    protected JarProcessor getDeferredProcessor() {
+        return proc.createKeepFilter();
     }
 
     protected void cleanHelper() {
         super.cleanHelper();
         patterns.clear();
+        shrinkMembers = false;
     }
 }
@@ -24,82 +24,234 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.*;
 
 // TODO: this can probably be refactored into JarClassVisitor, etc.
-class KeepProcessor extends Remapper implements JarProcessor
+class KeepProcessor implements JarProcessor
 {
-    private final ClassVisitor cv = new ClassRemapper(new EmptyClassVisitor(), this);
-    private final List<Wildcard> wildcards;
-    private final List<String> roots = new ArrayList<String>();
-    private final Map<String, Set<String>> depend = new HashMap<String, Set<String>>();
+    private final WildcardTrie wildcards;
+
+    // The dependency graph. Every class name seen, whether registered or only referenced, gets an
+    // integer ID, and each registered class an array of the IDs it references. All guarded by this.
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+    private int[][] depend = new int[256][];
+    private final BitSet registered = new BitSet();
+    private final BitSet roots = new BitSet();
+
+    // Replaces the class graph when keeping individual members.
+    private final MemberGraph members;
+    private MemberGraph.Reachability reachability;
 
     public KeepProcessor(List<Keep> patterns) {
-        wildcards = PatternElement.createWildcards(patterns);
+        this(patterns, false);
+    }
+
+    /**
+     * @param patterns the keep rules
+     * @param shrinkMembers whether to also find the unreachable fields and methods of the classes
+     * that are kept, see {@link MemberGraph}
+     */
+    public KeepProcessor(List<Keep> patterns, boolean shrinkMembers) {
+        wildcards = new WildcardTrie(PatternElement.createWildcards(patterns));
+        members = shrinkMembers ? new MemberGraph() : null;
     }
 
     public boolean isEnabled() {
         return !wildcards.isEmpty();
     }
 
-    public Set<String> getExcludes() {
-        Set<String> closure = new HashSet<String>();
-        closureHelper(closure, roots);
-        Set<String> removable = new HashSet<String>(depend.keySet());
-        removable.removeAll(closure);
-        return removable;
+    public synchronized Set<String> getExcludes() {
+        if (members != null)
+            return getReachability().getUnreachableClasses();
+        BitSet removable = (BitSet) registered.clone();
+        removable.andNot(closure());
+        Set<String> result = new HashSet<String>();
+        for (int i = removable.nextSetBit(0); i >= 0; i = removable.nextSetBit(i + 1))
+            result.add(names.get(i));
+        return result;
     }
 
-    private void closureHelper(Set<String> closure, Collection<String> process) {
-        if (process == null)
-            return;
-        for (String name : process) {
-            if (closure.add(name))
-                closureHelper(closure, depend.get(name));
+    /**
+     * Returns the unreachable fields and methods of the classes that are kept, keyed by class, each
+     * as its name and descriptor separated by a space. Always empty unless shrinking members.
+     */
+    public synchronized Map<String, Set<String>> getMemberExcludes() {
+        if (members == null)
+            return Collections.emptyMap();
+        return getReachability().getUnreachableMembers();
+    }
+
+    private MemberGraph.Reachability getReachability() {
+        if (reachability == null)
+            reachability = members.compute();
+        return reachability;
+    }
+
+    /**
+     * Returns the IDs of the classes reachable from the roots, found breadth first.
+     */
+    private BitSet closure() {
+        BitSet closure = (BitSet) roots.clone();
+        int[] queue = new int[Math.max(closure.cardinality(), 16)];
+        int head = 0, tail = 0;
+        for (int i = closure.nextSetBit(0); i >= 0; i = closure.nextSetBit(i + 1))
+            queue[tail++] = i;
+        while (head < tail) {
+            int[] deps = (queue[head] < depend.length) ? depend[queue[head]] : null;
+            head++;
+            if (deps == null)
+                continue;
+            for (int dep : deps) {
+                if (!closure.get(dep)) {
+                    closure.set(dep);
+                    if (tail == queue.length)
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    queue[tail++] = dep;
+                }
+            }
         }
+        return closure;
     }
 
-    private Set<String> curSet;
-    private byte[] buf = new byte[0x2000];
+    private synchronized int idOf(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
 
+    private synchronized void register(int id, boolean root) {
+        registered.set(id);
+        if (root)
+            roots.set(id);
+    }
+
+    private synchronized void setDependencies(int id, int[] deps) {
+        if (id >= depend.length)
+            depend = Arrays.copyOf(depend, Math.max(depend.length * 2, id + 1));
+        depend[id] = deps;
+    }
+
+    /**
+     * Registers a class and collects its dependencies. Safe to call from several threads at once.
+     */
     public boolean process(EntryStruct struct) throws IOException {
-        try {
-            if (struct.name.endsWith(".class")) {
-                String name = struct.name.substring(0, struct.name.length() - 6);
-                for (Wildcard wildcard : wildcards)
-                    if (wildcard.matches(name))
-                        roots.add(name);
-                depend.put(name, curSet = new HashSet<String>());
-                new ClassReader(new ByteArrayInputStream(struct.data)).accept(cv,
-                    ClassReader.EXPAND_FRAMES);
-                curSet.remove(name);
+        if (struct.name.endsWith(".class")) {
+            String name = struct.name.substring(0, struct.name.length() - 6);
+            if (members != null) {
+                try {
+                    members.add(struct.data, struct.getOffset(), struct.getLength(),
+                                wildcards.matches(name));
+                } catch (Exception e) {
+                    System.err.println("Error reading " + struct.name + ": " + e.getMessage());
+                }
+                return true;
             }
-        } catch (Exception e) {
-            System.err.println("Error reading " + struct.name + ": " + e.getMessage());
+            int id = idOf(name);
+            register(id, wildcards.matches(name));
+            Dependencies deps = new Dependencies(id);
+            try {
+                collect(struct, new DependencyCollector(deps));
+            } catch (Exception e) {
+                System.err.println("Error reading " + struct.name + ": " + e.getMessage());
+            }
+            deps.done();
         }
         return true;
     }
 
-    public String map(String key) {
-        if (key.startsWith("java/") || key.startsWith("javax/"))
-            return null;
-        curSet.add(key);
-        return null;
+    /**
+     * Passes every class name, descriptor, signature and string constant of a class to the
+     * collector. All of them are in the constant pool, so the code of the class is only decoded
+     * if {@link ConstantPoolUses} cannot account for every entry.
+     */
+    private static void collect(EntryStruct struct, DependencyCollector collector)
+        throws IOException {
+        ClassHeaderReader header = struct.getClassHeader();
+        ConstantPoolUses uses = new ConstantPoolUses(header);
+        try {
+            uses.mark();
+        } catch (ConstantPoolUses.UnsupportedClassException e) {
+            new ClassReader(struct.data, struct.getOffset(), struct.getLength()).accept(
+                new ClassRemapper(new EmptyClassVisitor(), collector), ClassReader.EXPAND_FRAMES);
+            return;
+        }
+        uses.accept(collector, true);
+    }
+
+    /**
+     * The dependencies of a registered class, while they are being collected.
+     */
+    private class Dependencies
+    {
+        private final int id;
+        private int[] deps = new int[16];
+        private int size;
+
+        Dependencies(int id) {
+            this.id = id;
+        }
+
+        void add(String name) {
+            int dep = idOf(name);
+            if (size > 0 && deps[size - 1] == dep)
+                return;
+            if (size == deps.length)
+                deps = Arrays.copyOf(deps, size * 2);
+            deps[size++] = dep;
+        }
+
+        /**
+         * Stores the dependencies, sorted and without duplicates or the class itself.
+         */
+        void done() {
+            Arrays.sort(deps, 0, size);
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (deps[i] != id && (n == 0 || deps[n - 1] != deps[i]))
+                    deps[n++] = deps[i];
+            }
+            setDependencies(id, Arrays.copyOf(deps, n));
+        }
     }
 
-    public Object mapValue(Object value) {
-        if (value instanceof String) {
-            String s = (String)value;
-            if (PackageRemapper.isArrayForName(s)) {
-                mapDesc(s.replace('.', '/'));
-            } else if (isForName(s)) {
-                map(s.replace('.', '/'));
+    /**
+     * Records every class referenced by a single class file without renaming anything. A new
+     * instance is used for each entry so that entries can be processed concurrently.
+     */
+    private static class DependencyCollector extends Remapper
+    {
+        private final Dependencies deps;
+
+        DependencyCollector(Dependencies deps) {
+            this.deps = deps;
+        }
+
+        public String map(String key) {
+            if (key.startsWith("java/") || key.startsWith("javax/"))
+                return null;
+            deps.add(key);
+            return null;
+        }
+
+        public Object mapValue(Object value) {
+            if (value instanceof String) {
+                String s = (String)value;
+                if (PackageRemapper.isArrayForName(s)) {
+                    mapDesc(s.replace('.', '/'));
+                } else if (isForName(s)) {
+                    map(s.replace('.', '/'));
+                }
+                return value;
+            } else {
+                return super.mapValue(value);
             }
-            return value;
-        } else {
-            return super.mapValue(value);
         }
     }
 
     // TODO: use this for package remapping too?
-    private static boolean isForName(String value) {
+    static boolean isForName(String value) {
         if (value.equals(""))
             return false;
         for (int i = 0, len = value.length(); i < len; i++) {
@@ -0,0 +1,97 @@
+package org.pantsbuild.jarjar;
+
+/**
+ * A set of <code>long</code> values, stored unboxed in a single open-addressing table with
+ * linear probing.
+ */
+class LongHashSet
+{
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // Zero marks an empty slot, so whether zero itself is in the set is tracked separately.
+    private long[] table;
+    private boolean hasZero;
+    private int size;
+    private int shift;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expected the number of values to make room for up front
+     */
+    public LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expected)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @return <code>true</code> if the value was not already in the set
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (hasZero)
+                return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int mask = table.length - 1;
+        for (int i = slot(value); ; i = (i + 1) & mask) {
+            long current = table[i];
+            if (current == value)
+                return false;
+            if (current == 0) {
+                table[i] = value;
+                if (++size > table.length * LOAD_FACTOR)
+                    rehash();
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(long value) {
+        if (value == 0)
+            return hasZero;
+        int mask = table.length - 1;
+        for (int i = slot(value); ; i = (i + 1) & mask) {
+            long current = table[i];
+            if (current == value)
+                return true;
+            if (current == 0)
+                return false;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(long value) {
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void rehash() {
+        long[] old = table;
+        allocate(old.length * 2);
+        int mask = table.length - 1;
+        for (long value : old) {
+            if (value == 0)
+                continue;
+            int i = slot(value);
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = value;
+        }
+    }
+}
@@ -79,7 +79,14 @@ public class Main {
     }
     PrintWriter w = new PrintWriter(System.out);
     DepHandler handler = new TextDepHandler(w, levelFlag);
-    new DepFind().run(cp1, cp2, handler);
+    DepFind depFind = new DepFind();
+    depFind.setParallelism(Integer.getInteger("parallelism", 1));
+    depFind.setLevel(levelFlag);
+    String indexDir = System.getProperty("indexDir");
+    if (indexDir != null) {
+      depFind.setIndexDirectory(new File(indexDir));
+    }
+    depFind.run(cp1, cp2, handler);
     w.flush();
   }
 
@@ -90,9 +97,19 @@ public class Main {
     List<PatternElement> rules = RulesFileParser.parse(rulesFile);
     boolean verbose = Boolean.getBoolean("verbose");
     boolean skipManifest = Boolean.getBoolean("skipManifest");
+    int parallelism = Integer.getInteger("parallelism", 1);
+    boolean shrinkMembers = Boolean.getBoolean("shrinkMembers");
+    boolean pipeline = Boolean.getBoolean("pipeline");
+    String compression = System.getProperty("compression");
     MainProcessor proc = new MainProcessor(rules, verbose, skipManifest,
-        System.getProperty("misplacedClassStrategy"));
-    StandaloneJarProcessor.run(inJar, outJar, proc);
-    proc.strip(outJar);
+        System.getProperty("misplacedClassStrategy"), shrinkMembers);
+    StandaloneJarProcessor jarProcessor = new StandaloneJarProcessor(proc);
+    jarProcessor.setParallelism(parallelism);
+    jarProcessor.setPipelined(pipeline);
+    if (compression != null)
+      jarProcessor.setCompressionPolicy(CompressionPolicy.parse(compression));
+    proc.analyze(inJar, parallelism);
+    jarProcessor.run(inJar, outJar);
+    proc.printStatistics();
   }
 }
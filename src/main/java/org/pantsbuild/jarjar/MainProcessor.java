@@ -21,13 +21,22 @@ import org.pantsbuild.jarjar.util.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-class MainProcessor implements JarProcessor
+class MainProcessor implements JarProcessor, JarEntryFilter
 {
     private final boolean verbose;
-    private final JarProcessorChain chain;
+    private final boolean skipManifest;
+    private final PackageRemapper pr;
+    private final PrescanProcessor prescan;
     private final KeepProcessor kp;
-    private final Map<String, String> renames = new HashMap<String, String>();
+    private final ZapProcessor zp;
+    private final JarProcessor misplacedClassProcessor;
+    private final Map<String, String> renames = new ConcurrentHashMap<String, String>();
+    private final JarProcessorChain chain;
+    private boolean analyzed;
+    private ExcludeProcessor excluder;
+    private MemberExcludeProcessor memberExcluder;
 
     public MainProcessor(List<PatternElement> patterns, boolean verbose, boolean skipManifest) {
         this(patterns, verbose, skipManifest, null);
@@ -45,6 +54,23 @@ class MainProcessor implements JarProcessor
      */
     public MainProcessor(List<PatternElement> patterns, boolean verbose, boolean skipManifest,
                          String misplacedClassStrategy) {
+        this(patterns, verbose, skipManifest, misplacedClassStrategy, false);
+    }
+
+    /**
+     * Creates a new MainProcessor, which automatically generates the standard zap, keep, remap,
+     * etc processors.
+     *
+     * @param patterns List of rules to parse.
+     * @param verbose Whether to verbosely log information.
+     * @param skipManifest If true, omits the manifest file from the processed jar.
+     * @param misplacedClassStrategy The strategy to use when processing class files that are in the
+     * wrong package (see MisplacedClassProcessorFactory.STRATEGY_* constants).
+     * @param shrinkMembers If true, keep rules also remove the unreachable fields and methods of
+     * the classes they keep.
+     */
+    public MainProcessor(List<PatternElement> patterns, boolean verbose, boolean skipManifest,
+                         String misplacedClassStrategy, boolean shrinkMembers) {
         this.verbose = verbose;
         List<Zap> zapList = new ArrayList<Zap>();
         List<Rule> ruleList = new ArrayList<Rule>();
@@ -59,34 +85,86 @@ class MainProcessor implements JarProcessor
             }
         }
 
-        PackageRemapper pr = new PackageRemapper(ruleList, verbose);
-        kp = keepList.isEmpty() ? null : new KeepProcessor(keepList);
+        this.skipManifest = skipManifest;
+        pr = new PackageRemapper(ruleList, verbose);
+        prescan = new PrescanProcessor(pr);
+        kp = keepList.isEmpty() ? null : new KeepProcessor(keepList, shrinkMembers);
+        zp = new ZapProcessor(zapList);
+        misplacedClassProcessor = MisplacedClassProcessorFactory.getInstance()
+            .getProcessorForName(misplacedClassStrategy);
+        chain = createChain();
+    }
 
+    private JarProcessorChain createChain() {
         List<JarProcessor> processors = new ArrayList<JarProcessor>();
         if (skipManifest)
             processors.add(ManifestProcessor.getInstance());
-        if (kp != null)
-            processors.add(kp);
-
-        JarProcessor misplacedClassProcessor = MisplacedClassProcessorFactory.getInstance()
-            .getProcessorForName(misplacedClassStrategy);
-
-        processors.add(new ZapProcessor(zapList));
+        processors.add(zp);
         processors.add(misplacedClassProcessor);
-        processors.add(new JarTransformerChain(new RemappingClassTransformer[] {
-            new RemappingClassTransformer(pr)
-        }));
-        processors.add(new MethodSignatureProcessor(pr));
+        processors.add(prescan);
+        processors.add(new RemappingJarTransformer(pr));
         processors.add(new ResourceProcessor(pr));
-        chain = new JarProcessorChain(processors.toArray(new JarProcessor[processors.size()]));
+        return new JarProcessorChain(processors.toArray(new JarProcessor[processors.size()]));
     }
 
-    public void strip(File file) throws IOException {
+    public boolean hasKeepRules() {
+        return kp != null;
+    }
+
+    /**
+     * Runs the keep rules over <code>from</code> ahead of processing it, so that the classes and
+     * members they leave out are dropped as they are read rather than stripped from the finished
+     * jar. Does nothing without keep rules.
+     *
+     * @param from the jar that is about to be processed
+     * @param parallelism the number of threads to read it with
+     */
+    public void analyze(File from, int parallelism) throws IOException {
         if (kp == null)
             return;
-        Set<String> excludes = getExcludes();
-        if (!excludes.isEmpty())
-            StandaloneJarProcessor.run(file, file, new ExcludeProcessor(excludes, verbose));
+        StandaloneJarProcessor reader = new StandaloneJarProcessor(kp);
+        reader.setParallelism(parallelism);
+        reader.read(from);
+        Set<String> excludes = new HashSet<String>();
+        for (String exclude : kp.getExcludes())
+            excludes.add(exclude + ".class");
+        excluder = new ExcludeProcessor(excludes, verbose);
+        Map<String, Set<String>> memberExcludes = kp.getMemberExcludes();
+        if (!memberExcludes.isEmpty())
+            memberExcluder = new MemberExcludeProcessor(memberExcludes, verbose);
+        analyzed = true;
+    }
+
+    /**
+     * Returns a processor that drops what the keep rules leave out from the processed entries,
+     * for when the keep rules were applied while processing rather than by {@link #analyze}.
+     * Renamed classes and descriptors are taken into account.
+     */
+    public JarProcessor createKeepFilter() {
+        List<JarProcessor> processors = new ArrayList<JarProcessor>();
+        if (kp != null) {
+            excluder = new ExcludeProcessor(getExcludes(), verbose);
+            processors.add(excluder);
+            Map<String, Set<String>> memberExcludes = getMemberExcludes();
+            if (!memberExcludes.isEmpty()) {
+                memberExcluder = new MemberExcludeProcessor(memberExcludes, verbose);
+                processors.add(memberExcluder);
+            }
+        }
+        return new JarProcessorChain(processors.toArray(new JarProcessor[processors.size()]));
+    }
+
+    /**
+     * Reports how well the remapper caches worked and what the keep rules removed, if verbose.
+     */
+    public void printStatistics() {
+        if (!verbose)
+            return;
+        System.err.println(pr.getCacheStatistics());
+        if (excluder != null)
+            System.err.println(excluder);
+        if (memberExcluder != null)
+            System.err.println(memberExcluder);
     }
 
     /**
@@ -97,15 +175,51 @@ class MainProcessor implements JarProcessor
      */
     private Set<String> getExcludes() {
         Set<String> result = new HashSet<String>();
-        for (String exclude : kp.getExcludes()) {
-            String name = exclude + ".class";
-            String renamed = renames.get(name);
-            result.add((renamed != null) ? renamed : name);
+        for (String exclude : kp.getExcludes())
+            result.add(getOutputName(exclude + ".class"));
+        return result;
+    }
+
+    /**
+     * Returns the members to delete, by output class name and with remapped descriptors.
+     */
+    private Map<String, Set<String>> getMemberExcludes() {
+        Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> entry : kp.getMemberExcludes().entrySet()) {
+            String path = getOutputName(entry.getKey() + ".class");
+            Set<String> members = new HashSet<String>();
+            for (String member : entry.getValue()) {
+                int space = member.indexOf(' ');
+                String desc = member.substring(space + 1);
+                desc = desc.startsWith("(") ? pr.mapMethodDesc(desc) : pr.mapDesc(desc);
+                members.add(member.substring(0, space + 1) + desc);
+            }
+            result.put(path.substring(0, path.length() - 6), members);
         }
         return result;
     }
 
+    private String getOutputName(String name) {
+        String renamed = renames.get(name);
+        return (renamed != null) ? renamed : name;
+    }
+
     /**
+     * Discards entries that the keep rules analyzed ahead of time leave out, or that a zap rule
+     * or <code>skipManifest</code> removes. Keep rules applied while processing need to see every
+     * entry, so nothing is discarded here then.
+     */
+    public boolean accept(String name) {
+        if (kp != null && !analyzed)
+            return true;
+        boolean keepIt = (!analyzed || excluder.accept(name)) && chain.accept(name);
+        if (!keepIt && verbose)
+            System.err.println("Removed " + name);
+        return keepIt;
+    }
+
+    /**
+     * Safe to call from several threads at once, as done by {@link ParallelJarProcessor}.
      *
      * @param struct
      * @return <code>true</code> if the entry is to include in the output jar
@@ -113,10 +227,18 @@ class MainProcessor implements JarProcessor
      */
     public boolean process(EntryStruct struct) throws IOException {
         String name = struct.name;
+        if (analyzed) {
+            if (!excluder.process(struct))
+                return false;
+            if (memberExcluder != null)
+                memberExcluder.process(struct);
+        } else if (kp != null) {
+            kp.process(struct);
+        }
         boolean keepIt = chain.process(struct);
         if (keepIt) {
             if (!name.equals(struct.name)) {
-                if (kp != null)
+                if (kp != null && !analyzed)
                     renames.put(name, struct.name);
                 if (verbose)
                     System.err.println("Renamed " + name + " -> " + struct.name);
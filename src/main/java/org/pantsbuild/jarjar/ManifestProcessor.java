@@ -20,7 +20,7 @@ import org.pantsbuild.jarjar.util.*;
 import java.io.IOException;
 import java.util.*;
 
-class ManifestProcessor implements JarProcessor
+class ManifestProcessor implements JarProcessor, JarEntryFilter
 {
     private static final String MANIFEST_PATH = "META-INF/MANIFEST.MF";
     private static final ManifestProcessor INSTANCE = new ManifestProcessor();
@@ -32,7 +32,11 @@ class ManifestProcessor implements JarProcessor
     private ManifestProcessor() {}
 
     public boolean process(EntryStruct struct) throws IOException {
-        return !struct.name.equalsIgnoreCase(MANIFEST_PATH);
+        return accept(struct.name);
+    }
+
+    public boolean accept(String name) {
+        return !name.equalsIgnoreCase(MANIFEST_PATH);
     }
 }
     
@@ -0,0 +1,75 @@
+package org.pantsbuild.jarjar;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.objectweb.asm.*;
+import org.pantsbuild.jarjar.util.*;
+
+/**
+ * Removes fields and methods from classes, as found by {@link MemberGraph}. Everything else about
+ * a class is copied as is.
+ */
+class MemberExcludeProcessor implements JarProcessor
+{
+    private final Map<String, Set<String>> excludes;
+    private final boolean verbose;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param excludes the members to remove, keyed by class name in internal form, each as its
+     * name and descriptor separated by a space
+     * @param verbose whether to log every member removed
+     */
+    public MemberExcludeProcessor(Map<String, Set<String>> excludes, boolean verbose) {
+        this.excludes = excludes;
+        this.verbose = verbose;
+    }
+
+    public boolean process(EntryStruct struct) throws IOException {
+        if (!struct.name.endsWith(".class"))
+            return true;
+        final String className = struct.name.substring(0, struct.name.length() - 6);
+        final Set<String> members = excludes.get(className);
+        if (members == null)
+            return true;
+        ClassReader reader = new ClassReader(struct.data, struct.getOffset(), struct.getLength());
+        ClassWriter writer = new ClassWriter(0);
+        reader.accept(new ClassVisitor(Opcodes.ASM7, writer) {
+            public FieldVisitor visitField(int access, String name, String desc, String signature,
+                                           Object value) {
+                if (exclude(className, name, desc))
+                    return null;
+                return super.visitField(access, name, desc, signature, value);
+            }
+
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                if (exclude(className, name, desc))
+                    return null;
+                return super.visitMethod(access, name, desc, signature, exceptions);
+            }
+
+            private boolean exclude(String className, String name, String desc) {
+                if (!members.contains(name + " " + desc))
+                    return false;
+                count.incrementAndGet();
+                if (verbose)
+                    System.err.println("Excluding " + className + "." + name + " " + desc);
+                return true;
+            }
+        }, 0);
+        byte[] data = writer.toByteArray();
+        bytes.addAndGet(struct.getLength() - data.length);
+        struct.data = data;
+        return true;
+    }
+
+    /**
+     * Describes how many members were excluded, and how many bytes that saved.
+     */
+    public String toString() {
+        return "Excluded " + count + " fields and methods (" + bytes + " bytes)";
+    }
+}
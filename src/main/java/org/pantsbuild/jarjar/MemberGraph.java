@@ -0,0 +1,658 @@
+package org.pantsbuild.jarjar;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.*;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+
+/**
+ * The fields and methods of the classes in a jar and what each of them references, for keeping
+ * only the members reachable from the keep roots.
+ * <p>
+ * A class is reachable if a reachable member, or the class structure of a reachable class, refers
+ * to it. Every member of a root is reachable, as is every member of a class named by a string
+ * constant or by a class value of an annotation, since it is presumably used by reflection.
+ * Otherwise a member is reachable if code or a method handle in a reachable member refers to it.
+ * Calls are virtual: a reachable method makes the methods that override or implement it in
+ * reachable subclasses reachable too. Members the JVM or the class library call on their own,
+ * such as static initializers, serialization hooks (including the one that deserializes lambdas),
+ * enum lookups and anything overriding a class outside the jar, are kept as long as their class
+ * is.
+ */
+class MemberGraph
+{
+    private static final Set<String> ALWAYS_KEPT = new HashSet<String>(Arrays.asList(
+        "<clinit> ()V",
+        "serialVersionUID J",
+        "serialPersistentFields [Ljava/io/ObjectStreamField;",
+        "writeObject (Ljava/io/ObjectOutputStream;)V",
+        "readObject (Ljava/io/ObjectInputStream;)V",
+        "readObjectNoData ()V",
+        "writeReplace ()Ljava/lang/Object;",
+        "readResolve ()Ljava/lang/Object;",
+        "$deserializeLambda$ (Ljava/lang/invoke/SerializedLambda;)Ljava/lang/Object;"));
+
+    private static final Set<String> OBJECT_METHODS = new HashSet<String>(Arrays.asList(
+        "equals (Ljava/lang/Object;)Z",
+        "hashCode ()I",
+        "toString ()Ljava/lang/String;",
+        "clone ()Ljava/lang/Object;",
+        "finalize ()V"));
+
+    private final Map<String, ClassInfo> classes = new ConcurrentHashMap<String, ClassInfo>();
+
+    /**
+     * Adds a class. Safe to call from several threads at once.
+     *
+     * @param data the class file
+     * @param root whether the class matches a keep rule
+     */
+    public void add(byte[] data, boolean root) {
+        add(data, 0, data.length, root);
+    }
+
+    /**
+     * Adds a class held in part of an array. Safe to call from several threads at once.
+     *
+     * @param data the array holding the class file
+     * @param offset the position of the class file in the array
+     * @param length the length of the class file
+     * @param root whether the class matches a keep rule
+     */
+    public void add(byte[] data, int offset, int length, boolean root) {
+        ClassInfo info = new ClassInfo(root);
+        new ClassReader(data, offset, length).accept(new InfoCollector(info), 0);
+        classes.put(info.name, info);
+    }
+
+    /**
+     * Works out what is reachable. Must not be called concurrently with {@link #add}.
+     *
+     * @return the reachability, by class
+     */
+    public Reachability compute() {
+        return new Reachability();
+    }
+
+    /**
+     * A field or method, identified by its name and descriptor separated by a space.
+     */
+    private static class MemberInfo
+    {
+        final ClassInfo owner;
+        final String key;
+        final int access;
+        final boolean method;
+        final Set<String> classRefs = new HashSet<String>();
+        final Set<String> reflectiveRefs = new HashSet<String>();
+        final List<MemberRef> memberRefs = new ArrayList<MemberRef>();
+
+        MemberInfo(ClassInfo owner, String name, String desc, int access) {
+            this.owner = owner;
+            this.key = name + " " + desc;
+            this.access = access;
+            this.method = desc.startsWith("(");
+        }
+
+        boolean isVirtual() {
+            return method && (access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0
+                && !key.startsWith("<init> ");
+        }
+    }
+
+    private static class MemberRef
+    {
+        final String owner;
+        final String key;
+        final boolean method;
+
+        MemberRef(String owner, String name, String desc) {
+            this.owner = owner;
+            this.key = name + " " + desc;
+            this.method = desc.startsWith("(");
+        }
+    }
+
+    private static class ClassInfo
+    {
+        final boolean root;
+        String name;
+        int access;
+        String superName;
+        String[] interfaces;
+        final Set<String> classRefs = new HashSet<String>();
+        final Set<String> reflectiveRefs = new HashSet<String>();
+        final Map<String, MemberInfo> members = new LinkedHashMap<String, MemberInfo>();
+
+        ClassInfo(boolean root) {
+            this.root = root;
+        }
+    }
+
+    /**
+     * The reachable classes and members.
+     */
+    public class Reachability
+    {
+        private final Set<ClassInfo> liveClasses = new HashSet<ClassInfo>();
+        private final Set<MemberInfo> liveMembers = new HashSet<MemberInfo>();
+        private final Map<String, List<ClassInfo>> subclasses = new HashMap<String, List<ClassInfo>>();
+        private final LinkedList<Object> queue = new LinkedList<Object>();
+
+        Reachability() {
+            for (ClassInfo info : classes.values()) {
+                addSubclass(info.superName, info);
+                for (String name : info.interfaces)
+                    addSubclass(name, info);
+            }
+            for (ClassInfo info : classes.values()) {
+                if (info.root)
+                    markAll(info);
+            }
+            while (!queue.isEmpty()) {
+                Object next = queue.removeFirst();
+                if (next instanceof ClassInfo) {
+                    visitClass((ClassInfo) next);
+                } else {
+                    visitMember((MemberInfo) next);
+                }
+            }
+        }
+
+        /**
+         * Returns the classes that nothing reachable refers to, in internal form.
+         */
+        public Set<String> getUnreachableClasses() {
+            Set<String> result = new HashSet<String>();
+            for (ClassInfo info : classes.values()) {
+                if (!liveClasses.contains(info))
+                    result.add(info.name);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the unreachable members of the reachable classes, keyed by the class name in
+         * internal form. Each member is given as its name and descriptor separated by a space.
+         */
+        public Map<String, Set<String>> getUnreachableMembers() {
+            Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+            for (ClassInfo info : liveClasses) {
+                Set<String> keys = new HashSet<String>();
+                for (MemberInfo member : info.members.values()) {
+                    if (!liveMembers.contains(member))
+                        keys.add(member.key);
+                }
+                if (!keys.isEmpty())
+                    result.put(info.name, keys);
+            }
+            return result;
+        }
+
+        private ClassInfo find(String name) {
+            return (name != null) ? classes.get(name) : null;
+        }
+
+        private void addSubclass(String name, ClassInfo info) {
+            if (name == null)
+                return;
+            List<ClassInfo> list = subclasses.get(name);
+            if (list == null)
+                subclasses.put(name, list = new ArrayList<ClassInfo>());
+            list.add(info);
+        }
+
+        private void markClass(String name) {
+            ClassInfo info = find(name);
+            if (info != null && liveClasses.add(info))
+                queue.add(info);
+        }
+
+        private void markMember(MemberInfo member) {
+            if (liveMembers.add(member))
+                queue.add(member);
+        }
+
+        private void markAll(ClassInfo info) {
+            markClass(info.name);
+            for (MemberInfo member : info.members.values())
+                markMember(member);
+        }
+
+        private void visitClass(ClassInfo info) {
+            markClass(info.superName);
+            for (String name : info.interfaces)
+                markClass(name);
+            for (String name : info.classRefs)
+                markClass(name);
+            markReflective(info.reflectiveRefs);
+
+            boolean keepAll = (info.access & Opcodes.ACC_ANNOTATION) != 0;
+            boolean enumeration = (info.access & Opcodes.ACC_ENUM) != 0;
+            boolean external = extendsExternalClass(info);
+            for (MemberInfo member : info.members.values()) {
+                if (keepAll
+                    || ALWAYS_KEPT.contains(member.key)
+                    || (member.access & Opcodes.ACC_NATIVE) != 0
+                    || (enumeration && (member.key.startsWith("values ")
+                                        || member.key.startsWith("valueOf ")))
+                    || (member.isVirtual() && (external || OBJECT_METHODS.contains(member.key))))
+                    markMember(member);
+            }
+
+            // Anything a supertype already dispatches to must be implemented here as well.
+            for (ClassInfo ancestor : getAncestors(info)) {
+                for (MemberInfo member : ancestor.members.values()) {
+                    if (member.isVirtual() && liveMembers.contains(member))
+                        markImplementation(info, member.key);
+                }
+            }
+        }
+
+        private void markReflective(Set<String> names) {
+            for (String name : names) {
+                ClassInfo info = find(name);
+                if (info != null)
+                    markAll(info);
+            }
+        }
+
+        private void visitMember(MemberInfo member) {
+            markClass(member.owner.name);
+            for (String name : member.classRefs)
+                markClass(name);
+            markReflective(member.reflectiveRefs);
+            for (MemberRef ref : member.memberRefs) {
+                markClass(ref.owner);
+                resolve(ref);
+            }
+            if (member.isVirtual()) {
+                Set<ClassInfo> seen = new HashSet<ClassInfo>();
+                LinkedList<String> pending = new LinkedList<String>();
+                pending.add(member.owner.name);
+                while (!pending.isEmpty()) {
+                    List<ClassInfo> list = subclasses.get(pending.removeFirst());
+                    if (list == null)
+                        continue;
+                    for (ClassInfo sub : list) {
+                        if (!seen.add(sub))
+                            continue;
+                        if (liveClasses.contains(sub))
+                            markImplementation(sub, member.key);
+                        pending.add(sub.name);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Marks the member a reference resolves to, searching the superclasses and then the
+         * superinterfaces of the referenced class. A method found only in interfaces is marked in
+         * all of them.
+         */
+        private void resolve(MemberRef ref) {
+            ClassInfo info = find(ref.owner);
+            if (info == null)
+                return;
+            if (!ref.method) {
+                for (ClassInfo c : getSelfAndAncestors(info)) {
+                    MemberInfo member = c.members.get(ref.key);
+                    if (member != null) {
+                        markMember(member);
+                        return;
+                    }
+                }
+                return;
+            }
+            if (markImplementation(info, ref.key))
+                return;
+            for (ClassInfo c : getSelfAndAncestors(info)) {
+                MemberInfo member = c.members.get(ref.key);
+                if (member != null)
+                    markMember(member);
+            }
+        }
+
+        /**
+         * Marks the method a class inherits for a key along its superclass chain, if it has one in
+         * the jar, or else the matching methods of its superinterfaces.
+         */
+        private boolean markImplementation(ClassInfo info, String key) {
+            for (ClassInfo c = info; c != null; c = find(c.superName)) {
+                MemberInfo member = c.members.get(key);
+                if (member != null) {
+                    markMember(member);
+                    return true;
+                }
+            }
+            boolean found = false;
+            for (ClassInfo c : getAncestors(info)) {
+                MemberInfo member = c.members.get(key);
+                if (member != null && (c.access & Opcodes.ACC_INTERFACE) != 0) {
+                    markMember(member);
+                    found = true;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Returns whether a class has a supertype other than <code>java/lang/Object</code> outside
+         * the jar, whose methods it may override without anything in the jar calling them.
+         */
+        private boolean extendsExternalClass(ClassInfo info) {
+            for (ClassInfo c : getSelfAndAncestors(info)) {
+                if (c.superName != null && !c.superName.equals("java/lang/Object")
+                    && find(c.superName) == null)
+                    return true;
+                for (String name : c.interfaces) {
+                    if (find(name) == null)
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private List<ClassInfo> getAncestors(ClassInfo info) {
+            List<ClassInfo> result = getSelfAndAncestors(info);
+            result.remove(0);
+            return result;
+        }
+
+        // Superclasses first, breadth first.
+        private List<ClassInfo> getSelfAndAncestors(ClassInfo info) {
+            List<ClassInfo> result = new ArrayList<ClassInfo>();
+            Set<ClassInfo> seen = new HashSet<ClassInfo>();
+            result.add(info);
+            seen.add(info);
+            for (ClassInfo c = find(info.superName); c != null && seen.add(c);
+                 c = find(c.superName))
+                result.add(c);
+            for (int i = 0; i < result.size(); i++) {
+                for (String name : result.get(i).interfaces) {
+                    ClassInfo c = find(name);
+                    if (c != null && seen.add(c))
+                        result.add(c);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Records the class names in descriptors, signatures and constants into a set, and those
+     * presumably used by reflection into another.
+     */
+    private static class TypeCollector extends Remapper
+    {
+        final Set<String> refs;
+        final Set<String> reflectiveRefs;
+
+        TypeCollector(Set<String> refs, Set<String> reflectiveRefs) {
+            this.refs = refs;
+            this.reflectiveRefs = reflectiveRefs;
+        }
+
+        public String map(String key) {
+            refs.add(key);
+            return null;
+        }
+
+        void addSignature(String signature, boolean typeSignature) {
+            if (signature == null)
+                return;
+            SignatureReader reader = new SignatureReader(signature);
+            SignatureVisitor visitor = new SignatureVisitor(Opcodes.ASM7) {
+                public void visitClassType(String name) {
+                    refs.add(name);
+                }
+            };
+            if (typeSignature) {
+                reader.acceptType(visitor);
+            } else {
+                reader.accept(visitor);
+            }
+        }
+    }
+
+    private static class InfoCollector extends ClassVisitor
+    {
+        private final ClassInfo info;
+        private final TypeCollector types;
+
+        InfoCollector(ClassInfo info) {
+            super(Opcodes.ASM7);
+            this.info = info;
+            this.types = new TypeCollector(info.classRefs, info.reflectiveRefs);
+        }
+
+        public void visit(int version, int access, String name, String signature,
+                          String superName, String[] interfaces) {
+            info.name = name;
+            info.access = access;
+            info.superName = superName;
+            info.interfaces = (interfaces != null) ? interfaces : new String[0];
+            types.addSignature(signature, false);
+        }
+
+        public void visitOuterClass(String owner, String name, String desc) {
+            info.classRefs.add(owner);
+        }
+
+        public void visitNestHost(String nestHost) {
+            info.classRefs.add(nestHost);
+        }
+
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+            if (name.equals(info.name) && outerName != null)
+                info.classRefs.add(outerName);
+        }
+
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            types.mapDesc(desc);
+            return new AnnotationCollector(types);
+        }
+
+        public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc,
+                                                     boolean visible) {
+            return visitAnnotation(desc, visible);
+        }
+
+        public FieldVisitor visitField(int access, String name, String desc, String signature,
+                                       Object value) {
+            final MemberInfo member = new MemberInfo(info, name, desc, access);
+            info.members.put(member.key, member);
+            final TypeCollector types = new TypeCollector(member.classRefs, member.reflectiveRefs);
+            types.mapDesc(desc);
+            types.addSignature(signature, true);
+            return new FieldVisitor(Opcodes.ASM7) {
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    types.mapDesc(desc);
+                    return new AnnotationCollector(types);
+                }
+
+                public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath,
+                                                             String desc, boolean visible) {
+                    return visitAnnotation(desc, visible);
+                }
+            };
+        }
+
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                         String[] exceptions) {
+            MemberInfo member = new MemberInfo(info, name, desc, access);
+            info.members.put(member.key, member);
+            TypeCollector types = new TypeCollector(member.classRefs, member.reflectiveRefs);
+            types.mapMethodDesc(desc);
+            types.addSignature(signature, false);
+            if (exceptions != null)
+                member.classRefs.addAll(Arrays.asList(exceptions));
+            return new MethodCollector(member, types);
+        }
+    }
+
+    private static class MethodCollector extends MethodVisitor
+    {
+        private final MemberInfo member;
+        private final TypeCollector types;
+
+        MethodCollector(MemberInfo member, TypeCollector types) {
+            super(Opcodes.ASM7);
+            this.member = member;
+            this.types = types;
+        }
+
+        public AnnotationVisitor visitAnnotationDefault() {
+            return new AnnotationCollector(types);
+        }
+
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            types.mapDesc(desc);
+            return new AnnotationCollector(types);
+        }
+
+        public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc,
+                                                     boolean visible) {
+            return visitAnnotation(desc, visible);
+        }
+
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String desc,
+                                                          boolean visible) {
+            return visitAnnotation(desc, visible);
+        }
+
+        public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String desc,
+                                                     boolean visible) {
+            return visitAnnotation(desc, visible);
+        }
+
+        public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath,
+                                                         String desc, boolean visible) {
+            return visitAnnotation(desc, visible);
+        }
+
+        public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath,
+                                                              Label[] start, Label[] end,
+                                                              int[] index, String desc,
+                                                              boolean visible) {
+            return visitAnnotation(desc, visible);
+        }
+
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            addFrameTypes(nLocal, local);
+            addFrameTypes(nStack, stack);
+        }
+
+        private void addFrameTypes(int n, Object[] types) {
+            for (int i = 0; i < n; i++) {
+                if (types[i] instanceof String)
+                    this.types.mapType((String) types[i]);
+            }
+        }
+
+        public void visitTypeInsn(int opcode, String type) {
+            types.mapType(type);
+        }
+
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            addMemberRef(owner, name, desc);
+        }
+
+        public void visitMethodInsn(int opcode, String owner, String name, String desc,
+                                    boolean isInterface) {
+            addMemberRef(owner, name, desc);
+        }
+
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... args) {
+            types.mapMethodDesc(desc);
+            addConstant(bsm);
+            for (Object arg : args)
+                addConstant(arg);
+        }
+
+        public void visitLdcInsn(Object value) {
+            addConstant(value);
+        }
+
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            types.mapDesc(desc);
+        }
+
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            if (type != null)
+                types.mapType(type);
+        }
+
+        public void visitLocalVariable(String name, String desc, String signature, Label start,
+                                       Label end, int index) {
+            types.mapDesc(desc);
+            types.addSignature(signature, true);
+        }
+
+        private void addMemberRef(String owner, String name, String desc) {
+            types.mapType(owner);
+            if (desc.startsWith("(")) {
+                types.mapMethodDesc(desc);
+            } else {
+                types.mapDesc(desc);
+            }
+            if (!owner.startsWith("["))
+                member.memberRefs.add(new MemberRef(owner, name, desc));
+        }
+
+        private void addConstant(Object value) {
+            if (value instanceof Handle) {
+                Handle handle = (Handle) value;
+                addMemberRef(handle.getOwner(), handle.getName(), handle.getDesc());
+            } else if (value instanceof ConstantDynamic) {
+                ConstantDynamic condy = (ConstantDynamic) value;
+                types.mapDesc(condy.getDescriptor());
+                addConstant(condy.getBootstrapMethod());
+                for (int i = 0; i < condy.getBootstrapMethodArgumentCount(); i++)
+                    addConstant(condy.getBootstrapMethodArgument(i));
+            } else if (value instanceof String) {
+                String s = (String) value;
+                if (PackageRemapper.isArrayForName(s)) {
+                    types.mapDesc(s.replace('.', '/'));
+                } else if (KeepProcessor.isForName(s)) {
+                    types.reflectiveRefs.add(s.replace('.', '/'));
+                }
+            } else {
+                types.mapValue(value);
+            }
+        }
+    }
+
+    private static class AnnotationCollector extends AnnotationVisitor
+    {
+        private final TypeCollector types;
+
+        AnnotationCollector(TypeCollector types) {
+            super(Opcodes.ASM7);
+            this.types = types;
+        }
+
+        public void visit(String name, Object value) {
+            if (value instanceof Type && ((Type) value).getSort() == Type.OBJECT) {
+                types.reflectiveRefs.add(((Type) value).getInternalName());
+            } else {
+                types.mapValue(value);
+            }
+        }
+
+        public void visitEnum(String name, String desc, String value) {
+            types.mapDesc(desc);
+        }
+
+        public AnnotationVisitor visitAnnotation(String name, String desc) {
+            types.mapDesc(desc);
+            return this;
+        }
+
+        public AnnotationVisitor visitArray(String name) {
+            return this;
+        }
+    }
+}
@@ -27,7 +27,7 @@ public class MethodSignatureProcessor implements JarProcessor {
    *
    * <p>Right now we assume all these methods take exactly one parameter and that it's a stirng.
    */
-  private static final Set<String> METHOD_NAMES_WITH_PARAMS_TO_REWRITE =
+  static final Set<String> METHOD_NAMES_WITH_PARAMS_TO_REWRITE =
       new HashSet<String>(Arrays.asList("getImplMethodSignature"));
 
   private final Remapper remapper;
@@ -44,17 +44,25 @@ public class MethodSignatureProcessor implements JarProcessor {
     ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
     ClassReader reader;
     try {
-      reader = new ClassReader(struct.data);
+      reader = new ClassReader(struct.data, struct.getOffset(), struct.getLength());
     } catch (RuntimeException e) {
       System.err.println("Unable to read bytecode from " + struct.name);
       e.printStackTrace();
       return true;
     }
-    reader.accept(new MethodSignatureRemapperClassVisitor(classWriter), ClassReader.EXPAND_FRAMES);
+    reader.accept(createVisitor(classWriter), ClassReader.EXPAND_FRAMES);
     struct.data = classWriter.toByteArray();
     return true;
   }
 
+  /**
+   * Returns a visitor that rewrites method signatures on their way to <code>next</code>, so that
+   * the rewriting can share a pass over the class with other transformations.
+   */
+  ClassVisitor createVisitor(ClassVisitor next) {
+    return new MethodSignatureRemapperClassVisitor(next);
+  }
+
   private class MethodSignatureRemapperClassVisitor extends ClassVisitor {
 
     private class MethodSignatureRemapperMethodVisitor extends MethodVisitor {
@@ -29,14 +29,19 @@ class PackageRemapper extends Remapper
         = Pattern.compile("\\[L[\\p{javaJavaIdentifierPart}\\.]+?;");
 
     private final List<Wildcard> wildcards;
-    private final Map<String, String> typeCache = new HashMap<String, String>();
-    private final Map<String, String> pathCache = new HashMap<String, String>();
-    private final Map<Object, String> valueCache = new HashMap<Object, String>();
+    private final WildcardTrie trie;
+    // Most lookups are for names the rules leave alone, so those are cached too, as UNCHANGED.
+    // String constants can be long and are rarely repeated, so the value cache caps their length.
+    private static final String UNCHANGED = new String("<unchanged>");
+    private final RemapperCache typeCache = new RemapperCache("Type cache", 1 << 16, 1L << 23, 1 << 10);
+    private final RemapperCache pathCache = new RemapperCache("Path cache", 1 << 14, 1L << 21, 1 << 10);
+    private final RemapperCache valueCache = new RemapperCache("Value cache", 1 << 14, 1L << 21, 1 << 8);
     private final boolean verbose;
 
     public PackageRemapper(List<Rule> ruleList, boolean verbose) {
         this.verbose = verbose;
         wildcards = PatternElement.createWildcards(ruleList);
+        trie = new WildcardTrie(wildcards);
     }
 
     // also used by KeepProcessor
@@ -44,15 +49,39 @@ class PackageRemapper extends Remapper
       return ARRAY_FOR_NAME_PATTERN.matcher(value).matches();
     }
 
+    /**
+     * Returns strings, in internal (slash-separated) form, one of which occurs in every type, path
+     * or string value that this remapper would change. A class whose constant pool contains none
+     * of them, in either slash- or dot-separated form, is left alone by the remapper.
+     */
+    List<String> getLiteralPrefixes() {
+        List<String> result = new ArrayList<String>(wildcards.size());
+        for (Wildcard wildcard : wildcards) {
+            String prefix = wildcard.getPrefix();
+            // mapPath matches the directory followed by RESOURCE_SUFFIX, which the original
+            // path does not contain.
+            int slash = prefix.lastIndexOf('/');
+            if (RESOURCE_SUFFIX.startsWith(prefix.substring(slash + 1)))
+                prefix = prefix.substring(0, slash + 1);
+            result.add(prefix);
+        }
+        return result;
+    }
+
+    /**
+     * Describes how well the caches have worked, one line per cache.
+     */
+    String getCacheStatistics() {
+        return typeCache + "\n" + pathCache + "\n" + valueCache;
+    }
+
     public String map(String key) {
         String s = typeCache.get(key);
         if (s == null) {
             s = replaceHelper(key);
-            if (key.equals(s))
-                s = null;
-            typeCache.put(key, s);
+            typeCache.put(key, key.equals(s) ? UNCHANGED : s);
         }
-        return s;
+        return (s == UNCHANGED) ? null : s;
     }
 
     public String mapPath(String path) {
@@ -74,24 +103,26 @@ class PackageRemapper extends Remapper
             s = replaceHelper(s);
             
             if (absolute) s = "/" + s;
-            if (s.indexOf(RESOURCE_SUFFIX) < 0)
-              return path;
-            s = s.substring(0, s.length() - RESOURCE_SUFFIX.length()) + end;
+            if (s.indexOf(RESOURCE_SUFFIX) < 0) {
+                s = UNCHANGED;
+            } else {
+                s = s.substring(0, s.length() - RESOURCE_SUFFIX.length()) + end;
+            }
             pathCache.put(path, s);
         }
-        return s;
+        return (s == UNCHANGED) ? path : s;
     }
 
     public Object mapValue(Object value) {
         if (value instanceof String) {
-            String s = valueCache.get(value);
+            String s = valueCache.get((String)value);
             if (s == null) {
                 s = (String)value;
                 if (isArrayForName(s)) {
                     String desc1 = s.replace('.', '/');
                     String desc2 = mapDesc(desc1);
                     if (!desc2.equals(desc1))
-                        return desc2.replace('/', '.');
+                        s = desc2.replace('/', '.');
                 } else {
                     s = mapPath(s);
                     if (s.equals(value)) {
@@ -106,10 +137,14 @@ class PackageRemapper extends Remapper
                         }
                     }
                 }
-                valueCache.put(value, s);
+                if (s.equals(value))
+                    s = UNCHANGED;
+                valueCache.put((String)value, s);
             }
+            if (s == UNCHANGED)
+                return value;
             // TODO: add back class name to verbose message
-            if (verbose && !s.equals(value))
+            if (verbose)
                 System.err.println("Changed \"" + value + "\" -> \"" + s + "\"");
             return s;
         } else {
@@ -118,11 +153,7 @@ class PackageRemapper extends Remapper
     }
 
     private String replaceHelper(String value) {
-        for (Wildcard wildcard : wildcards) {
-            String test = wildcard.replace(value);
-            if (test != null)
-                return test;
-        }
-        return value;
+        String test = trie.replace(value);
+        return (test != null) ? test : value;
     }
 }
@@ -0,0 +1,140 @@
+package org.pantsbuild.jarjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.pantsbuild.jarjar.util.ClassHeaderReader;
+import org.pantsbuild.jarjar.util.EntryStruct;
+import org.pantsbuild.jarjar.util.JarProcessor;
+
+/**
+ * Marks classes that no rule can touch so that the bytecode transformers skip them.
+ *
+ * <p>Every class name, descriptor, signature and string constant that {@link PackageRemapper}
+ * might rewrite is stored in a CONSTANT_Utf8 entry (CONSTANT_Class and CONSTANT_String entries
+ * only point to one), and contains the literal prefix of the rule that matches it. This scans the
+ * raw constant pool for those prefixes using a byte trie, without parsing the rest of the class. A
+ * class with no hit is passed through untouched, which saves two full ASM round trips.
+ */
+class PrescanProcessor implements JarProcessor {
+
+  private static final int CONSTANT_UTF8 = 1;
+
+  private final boolean matchesEverything;
+  // Maps each byte to its index in the trie's alphabet, or 0 if no prefix contains it.
+  private final int[] alphabet = new int[256];
+  private final int width;
+  // next[node * width + symbol] is the child of node, or 0 (the root) if there is none.
+  private int[] next;
+  private boolean[] terminal;
+  private int nodeCount = 1;
+
+  public PrescanProcessor(PackageRemapper pr) {
+    List<byte[]> prefixes = new ArrayList<byte[]>();
+    boolean empty = false;
+    for (String prefix : pr.getLiteralPrefixes()) {
+      empty |= prefix.length() == 0;
+      prefixes.add(encode(prefix));
+      if (prefix.indexOf('/') >= 0)
+        prefixes.add(encode(prefix.replace('/', '.')));
+    }
+    matchesEverything = empty;
+
+    int symbols = 0;
+    for (byte[] prefix : prefixes) {
+      for (byte b : prefix) {
+        if (alphabet[b & 0xFF] == 0)
+          alphabet[b & 0xFF] = ++symbols;
+      }
+    }
+    width = symbols + 1;
+    next = new int[16 * width];
+    terminal = new boolean[16];
+    for (byte[] prefix : prefixes)
+      add(prefix);
+  }
+
+  @Override public boolean process(EntryStruct struct) throws IOException {
+    if (!struct.name.endsWith(".class") || struct.skipTransform || matchesEverything)
+      return true;
+
+    ClassHeaderReader header;
+    try {
+      header = struct.getClassHeader();
+    } catch (IOException e) {
+      // Leave it to the transformers to report unreadable classes.
+      return true;
+    }
+    byte[] b = header.getBuffer();
+    for (int i = 1, count = header.getConstantPoolCount(); i < count; i++) {
+      if (header.getConstantPoolTag(i) == CONSTANT_UTF8
+          && containsPrefix(b, header.getUtf8Offset(i), header.getUtf8Length(i))) {
+        return true;
+      }
+    }
+    struct.skipTransform = true;
+    // The transformers would otherwise move the class to match its name.
+    struct.name = header.getClassName() + ".class";
+    return true;
+  }
+
+  private boolean containsPrefix(byte[] b, int off, int len) {
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      int node = 0;
+      for (int j = i; j < end; j++) {
+        int symbol = alphabet[b[j] & 0xFF];
+        if (symbol == 0)
+          break;
+        node = next[node * width + symbol];
+        if (node == 0)
+          break;
+        if (terminal[node])
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private void add(byte[] prefix) {
+    int node = 0;
+    for (byte b : prefix) {
+      int slot = node * width + alphabet[b & 0xFF];
+      if (next[slot] == 0) {
+        if (nodeCount == terminal.length) {
+          int[] grownNext = new int[next.length * 2];
+          System.arraycopy(next, 0, grownNext, 0, next.length);
+          next = grownNext;
+          boolean[] grownTerminal = new boolean[terminal.length * 2];
+          System.arraycopy(terminal, 0, grownTerminal, 0, terminal.length);
+          terminal = grownTerminal;
+        }
+        next[slot] = nodeCount++;
+      }
+      node = next[slot];
+    }
+    terminal[node] = true;
+  }
+
+  /**
+   * Encodes a string the way class files store CONSTANT_Utf8 entries.
+   */
+  private static byte[] encode(String s) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        out.write(c);
+      } else if (c <= 0x07FF) {
+        out.write(0xC0 | (c >> 6));
+        out.write(0x80 | (c & 0x3F));
+      } else {
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+      }
+    }
+    return out.toByteArray();
+  }
+}
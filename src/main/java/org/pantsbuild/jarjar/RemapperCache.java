@@ -0,0 +1,118 @@
+package org.pantsbuild.jarjar;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of remapped strings for {@link PackageRemapper}.
+ * <p>
+ * The cache is split into independently locked segments, each evicting its least recently used
+ * entries once it holds more than its share of the entry or character budget. Strings longer than
+ * a limit are never cached, since large string constants are rarely seen twice. Hits and misses
+ * are counted for verbose output.
+ */
+class RemapperCache
+{
+    private static final int SEGMENTS = 16;
+
+    private final String name;
+    private final int maxLength;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param name what to call the cache in statistics
+     * @param maxEntries the maximum number of entries
+     * @param maxChars the maximum total length of the keys and values
+     * @param maxLength the length above which keys are not cached
+     */
+    public RemapperCache(String name, int maxEntries, long maxChars, int maxLength) {
+        this.name = name;
+        this.maxLength = maxLength;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), maxChars / SEGMENTS);
+    }
+
+    /**
+     * Returns the cached value, or <code>null</code> if there is none.
+     */
+    public String get(String key) {
+        String value = null;
+        if (key.length() <= maxLength) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                value = segment.get(key);
+            }
+        }
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    public void put(String key, String value) {
+        if (key.length() > maxLength)
+            return;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.add(key, value);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public String toString() {
+        long h = hits.get();
+        long m = misses.get();
+        long percent = (h + m == 0) ? 0 : 100 * h / (h + m);
+        return name + ": " + h + " hits, " + m + " misses (" + percent + "% hit rate), "
+            + size() + " entries";
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private static class Segment extends LinkedHashMap<String, String>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final long maxChars;
+        private long chars;
+
+        Segment(int maxEntries, long maxChars) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.maxChars = maxChars;
+        }
+
+        void add(String key, String value) {
+            String old = put(key, value);
+            if (old != null)
+                chars -= weigh(key, old);
+            chars += weigh(key, value);
+            Iterator<Map.Entry<String, String>> it = entrySet().iterator();
+            while ((size() > maxEntries || chars > maxChars) && it.hasNext()) {
+                Map.Entry<String, String> eldest = it.next();
+                chars -= weigh(eldest.getKey(), eldest.getValue());
+                it.remove();
+            }
+        }
+
+        private static long weigh(String key, String value) {
+            return key.length() + ((value == key) ? 0 : value.length());
+        }
+    }
+}
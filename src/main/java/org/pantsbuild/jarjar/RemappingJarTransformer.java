@@ -0,0 +1,41 @@
+package org.pantsbuild.jarjar;
+
+import java.io.IOException;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.pantsbuild.jarjar.util.EntryStruct;
+import org.pantsbuild.jarjar.util.JarTransformer;
+
+/**
+ * Applies the rename rules to a class. Most classes only need their constant pool rewritten, see
+ * {@link ConstantPoolRewriter}. The rest go through ASM in a single pass: the class is decoded
+ * once, runs through remapping and method signature rewriting, and is encoded once.
+ */
+class RemappingJarTransformer extends JarTransformer
+{
+    private final PackageRemapper pr;
+    private final MethodSignatureProcessor signatures;
+    private final ConstantPoolRewriter rewriter;
+
+    public RemappingJarTransformer(PackageRemapper pr) {
+        this.pr = pr;
+        this.signatures = new MethodSignatureProcessor(pr);
+        this.rewriter = new ConstantPoolRewriter(pr);
+    }
+
+    public boolean process(EntryStruct struct) throws IOException {
+        if (struct.name.endsWith(".class") && !struct.skipTransform) {
+            byte[] data = rewriter.rewrite(struct);
+            if (data != null) {
+                struct.data = data;
+                struct.name = struct.getClassHeader().getClassName() + ".class";
+                return true;
+            }
+        }
+        return super.process(struct);
+    }
+
+    protected ClassVisitor transform(ClassVisitor v) {
+        return new ClassRemapper(signatures.createVisitor(v), pr);
+    }
+}
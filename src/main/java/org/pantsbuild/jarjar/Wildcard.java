@@ -16,18 +16,34 @@
 
 package org.pantsbuild.jarjar;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+/**
+ * A class name pattern, where "*" matches one or more characters other than "/" and "**" matches
+ * one or more characters of any kind, or zero characters at the end of the pattern.
+ * <p>
+ * Matching backtracks through the wildcards in the order a regular expression using greedy
+ * <code>([^/]+)</code> and reluctant <code>(.+?)</code> groups would, so groups capture the same
+ * text, but works directly on the name without allocating.
+ */
 class Wildcard
 {
-    private static Pattern dstar = Pattern.compile("\\*\\*");
-    private static Pattern star  = Pattern.compile("\\*");
-    private static Pattern estar = Pattern.compile("\\+\\??\\)\\Z");
+    private static final int LITERAL = 0;
+    private static final int STAR = 1;
+    private static final int DSTAR = 2;
 
-    private final Pattern pattern;
+    private static final ThreadLocal<int[]> GROUPS = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[16];
+        }
+    };
+
+    private final String pattern;
+    private final String prefix;
+    private final int[] kinds;
+    private final String[] literals;
+    private final int[] groupIndex;
     private final int count;
     private final ArrayList<Object> parts = new ArrayList<Object>(16); // kept for debugging
     private final String[] strings;
@@ -41,12 +57,45 @@ class Wildcard
         if (pattern.indexOf("***") >= 0)
             throw new IllegalArgumentException("The sequence '***' is invalid in a package pattern");
 
-        String regex = pattern;
-        regex = replaceAllLiteral(dstar, regex, "(.+?)");
-        regex = replaceAllLiteral(star, regex, "([^/]+)");
-        regex = replaceAllLiteral(estar, regex, "*)");
-        this.pattern = Pattern.compile("\\A" + regex + "\\Z");
-        this.count = this.pattern.matcher("foo").groupCount();
+        this.pattern = pattern;
+        int firstStar = pattern.indexOf('*');
+        this.prefix = (firstStar < 0) ? pattern : pattern.substring(0, firstStar);
+
+        ArrayList<String> segments = new ArrayList<String>();
+        for (int i = 0, len = pattern.length(); i < len; ) {
+            if (pattern.startsWith("**", i)) {
+                segments.add("**");
+                i += 2;
+            } else if (pattern.charAt(i) == '*') {
+                segments.add("*");
+                i++;
+            } else {
+                int star = pattern.indexOf('*', i);
+                int end = (star < 0) ? len : star;
+                segments.add(pattern.substring(i, end));
+                i = end;
+            }
+        }
+        int size = segments.size();
+        kinds = new int[size];
+        literals = new String[size];
+        groupIndex = new int[size];
+        int wildcardCount = 0;
+        for (int i = 0; i < size; i++) {
+            String segment = segments.get(i);
+            groupIndex[i] = wildcardCount;
+            if (segment.equals("**")) {
+                kinds[i] = DSTAR;
+                wildcardCount++;
+            } else if (segment.equals("*")) {
+                kinds[i] = STAR;
+                wildcardCount++;
+            } else {
+                kinds[i] = LITERAL;
+                literals[i] = segment;
+            }
+        }
+        this.count = wildcardCount;
 
         // TODO: check for illegal characters
         char[] chars = result.toCharArray();
@@ -76,7 +125,7 @@ class Wildcard
                 }
             }
         }
-        int size = parts.size();
+        size = parts.size();
         strings = new String[size];
         refs = new int[size];
         Arrays.fill(refs, -1);
@@ -93,26 +142,106 @@ class Wildcard
         // System.err.println(this);
     }
 
+    /**
+     * Returns the literal text before the first wildcard in the pattern. Every value this wildcard
+     * matches starts with it.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
     public boolean matches(String value) {
-        return getMatcher(value) != null;
+        return match(value, 0, 0, null);
     }
 
     public String replace(String value) {
-        Matcher matcher = getMatcher(value);
-        if (matcher != null) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < strings.length; i++)
-                sb.append((refs[i] >= 0) ? matcher.group(refs[i]) : strings[i]);
-            return sb.toString();
+        int[] groups = GROUPS.get();
+        if (groups.length < count * 2) {
+            groups = new int[count * 2];
+            GROUPS.set(groups);
+        }
+        if (!match(value, 0, 0, groups))
+            return null;
+        int length = 0;
+        for (int i = 0; i < strings.length; i++)
+            length += (refs[i] >= 0) ? groupEnd(groups, refs[i], value) - groupStart(groups, refs[i])
+                                     : strings[i].length();
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < strings.length; i++) {
+            if (refs[i] >= 0) {
+                sb.append(value, groupStart(groups, refs[i]), groupEnd(groups, refs[i], value));
+            } else {
+                sb.append(strings[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int groupStart(int[] groups, int ref) {
+        return (ref == 0) ? 0 : groups[ref * 2 - 2];
+    }
+
+    private static int groupEnd(int[] groups, int ref, String value) {
+        return (ref == 0) ? value.length() : groups[ref * 2 - 1];
+    }
+
+    /**
+     * Matches the segments from <code>seg</code> on against the value from <code>pos</code> on,
+     * recording where each wildcard matched in <code>groups</code> unless it is <code>null</code>.
+     * Wildcards only match valid identifier characters, which spares a separate pass over the
+     * value to validate it.
+     */
+    private boolean match(String value, int seg, int pos, int[] groups) {
+        int len = value.length();
+        if (seg == kinds.length)
+            return pos == len;
+        boolean last = seg == kinds.length - 1;
+        switch (kinds[seg]) {
+        case LITERAL:
+            String literal = literals[seg];
+            return value.startsWith(literal, pos) && match(value, seg + 1, pos + literal.length(), groups);
+        case STAR:
+            int end = pos;
+            while (end < len && value.charAt(end) != '/' && isIdentifierChar(value.charAt(end)))
+                end++;
+            for (int e = end, min = last ? pos : pos + 1; e >= min; e--) {
+                if (match(value, seg + 1, e, groups)) {
+                    setGroup(groups, seg, pos, e);
+                    return true;
+                }
+            }
+            return false;
+        default:
+            for (int e = pos; e <= len; e++) {
+                if (e > pos) {
+                    char c = value.charAt(e - 1);
+                    if (!isIdentifierChar(c) || isLineTerminator(c))
+                        return false;
+                }
+                if ((last || e > pos) && match(value, seg + 1, e, groups)) {
+                    setGroup(groups, seg, pos, e);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void setGroup(int[] groups, int seg, int start, int end) {
+        if (groups != null) {
+            groups[groupIndex[seg] * 2] = start;
+            groups[groupIndex[seg] * 2 + 1] = end;
         }
-        return null;
     }
 
-    private Matcher getMatcher(String value) {
-        Matcher matcher = pattern.matcher(value);
-        if (matcher.matches() && checkIdentifierChars(value, "/"))
-            return matcher;
-        return null;
+    private static boolean isIdentifierChar(char c) {
+        // Dash ('-') support added to accommodate class files under META-INF and scala packages.
+        return Character.isJavaIdentifierPart(c) || c == '-' || c == '/';
+    }
+
+    // Characters that "." does not match in a regular expression.
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
     }
 
     private static boolean checkIdentifierChars(String expr, String extra) {
@@ -133,11 +262,6 @@ class Wildcard
       return true;
     }
 
-    private static String replaceAllLiteral(Pattern pattern, String value, String replace) {
-        replace = replace.replaceAll("([$\\\\])", "\\\\$0");
-        return pattern.matcher(value).replaceAll(replace);
-    }
-
     public String toString() {
         return "Wildcard{pattern=" + pattern + ",parts=" + parts + "}";
     }
@@ -0,0 +1,121 @@
+package org.pantsbuild.jarjar;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ordered list of wildcards, indexed by their literal prefixes.
+ * <p>
+ * A wildcard can only match names that start with its prefix, so walking the name down a trie of
+ * prefixes yields the few wildcards worth trying. They are tried in list order, so the first
+ * matching wildcard wins just as it would when trying every wildcard in turn, but a lookup costs
+ * about the length of the name rather than the number of wildcards.
+ */
+class WildcardTrie
+{
+    private static final int[] NO_CANDIDATES = new int[0];
+
+    private final Wildcard[] wildcards;
+    private final Node root = new Node();
+
+    public WildcardTrie(List<Wildcard> wildcards) {
+        this.wildcards = wildcards.toArray(new Wildcard[wildcards.size()]);
+        for (int i = 0; i < this.wildcards.length; i++) {
+            String prefix = this.wildcards[i].getPrefix();
+            Node node = root;
+            for (int j = 0, len = prefix.length(); j < len; j++)
+                node = node.getOrAddChild(prefix.charAt(j));
+            node.addWildcard(i);
+        }
+    }
+
+    public boolean isEmpty() {
+        return wildcards.length == 0;
+    }
+
+    /**
+     * Returns whether any wildcard matches the value.
+     */
+    public boolean matches(String value) {
+        for (int i : findCandidates(value)) {
+            if (wildcards[i].matches(value))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the value as rewritten by the first wildcard that matches it, or <code>null</code>
+     * if none does.
+     */
+    public String replace(String value) {
+        // Wildcard.replace returns null when it does not match, so each candidate is matched
+        // only once.
+        for (int i : findCandidates(value)) {
+            String result = wildcards[i].replace(value);
+            if (result != null)
+                return result;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the indexes of the wildcards whose prefixes the value starts with, in list order.
+     */
+    private int[] findCandidates(String value) {
+        int[] candidates = NO_CANDIDATES;
+        int count = 0;
+        Node node = root;
+        for (int i = 0, len = value.length(); node != null; i++) {
+            if (node.wildcards != null) {
+                candidates = Arrays.copyOf(candidates, count + node.wildcards.length);
+                System.arraycopy(node.wildcards, 0, candidates, count, node.wildcards.length);
+                count += node.wildcards.length;
+            }
+            node = (i < len) ? node.getChild(value.charAt(i)) : null;
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    private static class Node
+    {
+        // Sorted, with the children at the same positions.
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // The positions of the wildcards whose prefix ends here, in ascending order.
+        int[] wildcards;
+
+        Node getChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return (i >= 0) ? children[i] : null;
+        }
+
+        Node getOrAddChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0)
+                return children[i];
+            i = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+            System.arraycopy(children, i, newChildren, i + 1, keys.length - i);
+            newKeys[i] = c;
+            newChildren[i] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[i];
+        }
+
+        void addWildcard(int index) {
+            if (wildcards == null) {
+                wildcards = new int[] { index };
+            } else {
+                wildcards = Arrays.copyOf(wildcards, wildcards.length + 1);
+                wildcards[wildcards.length - 1] = index;
+            }
+        }
+    }
+}
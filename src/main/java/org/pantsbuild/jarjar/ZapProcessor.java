@@ -20,28 +20,26 @@ import org.pantsbuild.jarjar.util.*;
 import java.io.IOException;
 import java.util.*;
 
-class ZapProcessor implements JarProcessor
+class ZapProcessor implements JarProcessor, JarEntryFilter
 {
-    private List<Wildcard> wildcards;
+    private final WildcardTrie wildcards;
 
     public ZapProcessor(List<Zap> zapList) {
-        wildcards = PatternElement.createWildcards(zapList);
+        wildcards = new WildcardTrie(PatternElement.createWildcards(zapList));
     }
 
     public boolean process(EntryStruct struct) throws IOException {
-        String name = struct.name;
+        return accept(struct.name);
+    }
+
+    public boolean accept(String name) {
         if (name.endsWith(".class"))
             return !zap(name.substring(0, name.length() - 6));
         return true;
     }
     
     private boolean zap(String desc) {
-        // TODO: optimize
-        for (Wildcard wildcard : wildcards) {
-            if (wildcard.matches(desc))
-                return true;
-        }
-        return false;
+        return wildcards.matches(desc);
     }
 }
     
@@ -1,7 +1,6 @@
 package org.pantsbuild.jarjar.misplaced;
 
 import java.io.IOException;
-import org.objectweb.asm.ClassReader;
 import org.pantsbuild.jarjar.util.EntryStruct;
 import org.pantsbuild.jarjar.util.JarProcessor;
 
@@ -36,7 +35,7 @@ public abstract class MisplacedClassProcessor implements JarProcessor {
 
     String originalClassName;
     try {
-      originalClassName = new ClassReader(struct.data).getClassName() + ".class";
+      originalClassName = struct.getClassHeader().getClassName() + ".class";
     } catch (Exception e) {
       System.err.println("Unable to read classname from bytecode in " + struct.name);
       System.err.println("Shading is therefore impossible, so this entry will be skipped.");
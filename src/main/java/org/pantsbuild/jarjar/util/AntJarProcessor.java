@@ -18,6 +18,7 @@ package org.pantsbuild.jarjar.util;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.taskdefs.Jar;
 import org.apache.tools.ant.types.ZipFileSet;
@@ -27,7 +28,6 @@ import org.apache.tools.zip.ZipOutputStream;
 
 abstract public class AntJarProcessor extends Jar
 {
-    private EntryStruct struct = new EntryStruct();
     private JarProcessor proc;
     private byte[] buf = new byte[0x2000];
 
@@ -35,6 +35,12 @@ abstract public class AntJarProcessor extends Jar
     private boolean filesOnly;
 
     protected boolean verbose;
+    protected int parallelism = 1;
+    private CompressionPolicy compression;
+
+    private ParallelJarProcessor parallel;
+    private final LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+    private final List<PendingEntry> deferred = new ArrayList<PendingEntry>();
 
     private static final ZipExtraField[] JAR_MARKER = new ZipExtraField[] {
         JarMarker.getInstance()
@@ -44,13 +50,58 @@ abstract public class AntJarProcessor extends Jar
         this.verbose = verbose;
     }
 
+    /**
+     * Sets the number of threads used to process entries. Entries are still read and written by
+     * the task's own thread, in their original order.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new BuildException("parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets how entries are compressed, see {@link CompressionPolicy}. Overrides the
+     * <code>compress</code> and <code>level</code> attributes.
+     */
+    public void setCompression(String policy) {
+        try {
+            compression = CompressionPolicy.parse(policy);
+        } catch (IllegalArgumentException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
     public abstract void execute() throws BuildException;
 
     public void execute(JarProcessor proc) throws BuildException {
         this.proc = proc;
+        if (compression != null) {
+            // Ant writes the manifest itself, with the settings of the task.
+            int level = compression.getLevel("META-INF/MANIFEST.MF");
+            setCompress(level != CompressionPolicy.STORED);
+            if (level != CompressionPolicy.STORED)
+                setLevel(level);
+        }
         super.execute();
     }
 
+    /**
+     * Returns whether processed entries are held back until every entry has been processed, and
+     * then run through {@link #getDeferredProcessor}. Defaults to <code>false</code>.
+     */
+    protected boolean isDeferred() {
+        return false;
+    }
+
+    /**
+     * Returns the processor to run the held back entries through once every entry has been
+     * processed, see {@link #isDeferred}.
+     */
+    protected JarProcessor getDeferredProcessor() {
+        return new JarProcessorChain(new JarProcessor[0]);
+    }
+
     public void setFilesonly(boolean f) {
         super.setFilesonly(f);
         filesOnly = f;
@@ -62,20 +113,86 @@ abstract public class AntJarProcessor extends Jar
 
     protected void zipFile(InputStream is, ZipOutputStream zOut, String vPath,
                                      long lastModified, File fromArchive, int mode) throws IOException {
+        if (skipWriting) {
+            // The first of two passes, which only gathers manifests. The entries are processed in
+            // the second.
+            super.zipFile(is, zOut, vPath, lastModified, fromArchive, mode);
+            return;
+        }
+        if (proc instanceof JarEntryFilter && !((JarEntryFilter) proc).accept(vPath))
+            return;
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         IoUtil.pipe(is, baos, buf);
+        final EntryStruct struct = new EntryStruct();
         struct.data = baos.toByteArray();
         struct.name = vPath;
         struct.time = lastModified;
-        if (proc.process(struct)) {
-            if (mode == 0)
-                mode = ZipFileSet.DEFAULT_FILE_MODE;
-            if (!filesOnly) {
-              addParentDirs(struct.name, zOut);
+        if (parallelism == 1) {
+            if (proc.process(struct))
+                processed(struct, zOut, fromArchive, mode);
+            return;
+        }
+        if (parallel == null)
+            parallel = new ParallelJarProcessor(proc, parallelism);
+        parallel.submit(new Callable<EntryStruct>() {
+            public EntryStruct call() {
+                return struct;
+            }
+        });
+        pending.add(new PendingEntry(fromArchive, mode));
+        while (parallel.isFull())
+            writeNext(zOut);
+    }
+
+    protected void finalizeZipOutputStream(ZipOutputStream zOut)
+        throws IOException, BuildException {
+        while (!pending.isEmpty())
+            writeNext(zOut);
+        if (!deferred.isEmpty()) {
+            JarProcessor deferredProc = getDeferredProcessor();
+            for (PendingEntry entry : deferred) {
+                if (deferredProc.process(entry.struct))
+                    writeEntry(entry.struct, zOut, entry.fromArchive, entry.mode);
             }
-            super.zipFile(new ByteArrayInputStream(struct.data),
-                          zOut, struct.name, struct.time, fromArchive, mode);
+            deferred.clear();
         }
+        super.finalizeZipOutputStream(zOut);
+    }
+
+    private void writeNext(ZipOutputStream zOut) throws IOException {
+        PendingEntry entry = pending.removeFirst();
+        EntryStruct struct = parallel.next();
+        if (struct != null)
+            processed(struct, zOut, entry.fromArchive, entry.mode);
+    }
+
+    private void processed(EntryStruct struct, ZipOutputStream zOut, File fromArchive, int mode)
+        throws IOException {
+        if (isDeferred()) {
+            PendingEntry entry = new PendingEntry(fromArchive, mode);
+            entry.struct = struct;
+            deferred.add(entry);
+        } else {
+            writeEntry(struct, zOut, fromArchive, mode);
+        }
+    }
+
+    private void writeEntry(EntryStruct struct, ZipOutputStream zOut, File fromArchive, int mode)
+        throws IOException {
+        if (mode == 0)
+            mode = ZipFileSet.DEFAULT_FILE_MODE;
+        if (!filesOnly) {
+          addParentDirs(struct.name, zOut);
+        }
+        if (compression != null) {
+            // Ant computes the CRC and size of stored entries itself.
+            int level = compression.getLevel(struct.name);
+            setCompress(level != CompressionPolicy.STORED);
+            if (level != CompressionPolicy.STORED)
+                zOut.setLevel(level);
+        }
+        super.zipFile(struct.openStream(),
+                      zOut, struct.name, struct.time, fromArchive, mode);
     }
 
     private void addParentDirs(String file, ZipOutputStream zOut) throws IOException {
@@ -92,6 +209,8 @@ abstract public class AntJarProcessor extends Jar
     public void reset() {
         super.reset();
         cleanHelper();
+        parallelism = 1;
+        compression = null;
     }
 
     protected void cleanUp() {
@@ -103,5 +222,23 @@ abstract public class AntJarProcessor extends Jar
         verbose = false;
         filesOnly = false;
         dirs.clear();
+        pending.clear();
+        deferred.clear();
+        if (parallel != null) {
+            parallel.shutdown();
+            parallel = null;
+        }
+    }
+
+    private static class PendingEntry
+    {
+        final File fromArchive;
+        final int mode;
+        EntryStruct struct;
+
+        PendingEntry(File fromArchive, int mode) {
+            this.fromArchive = fromArchive;
+            this.mode = mode;
+        }
     }
 }
@@ -0,0 +1,72 @@
+package org.pantsbuild.jarjar.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out byte arrays for reading entries and takes them back once the entries are written, so
+ * that a jar of many similarly sized classes is read without allocating an array for each one.
+ * <p>
+ * Arrays are kept in buckets by size, each a power of two from {@link #MIN_SIZE} to {@link
+ * #MAX_SIZE}. Larger requests are allocated exactly and never pooled. The pool holds at most a
+ * fixed number of bytes; arrays released beyond that are left to the garbage collector, as are
+ * arrays that are never released. Any thread may acquire and release.
+ */
+public class BufferPool
+{
+    public static final int MIN_SIZE = 1 << 10;
+    public static final int MAX_SIZE = 1 << 20;
+
+    private static final int MIN_SHIFT = 10;
+
+    private final List<ConcurrentLinkedQueue<byte[]>> buckets;
+    private final long capacity;
+    private final AtomicLong pooled = new AtomicLong();
+
+    /**
+     * @param capacity the most bytes to hold in arrays that are not in use
+     */
+    public BufferPool(long capacity) {
+        this.capacity = capacity;
+        int count = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+        buckets = new ArrayList<ConcurrentLinkedQueue<byte[]>>(count);
+        for (int i = 0; i < count; i++)
+            buckets.add(new ConcurrentLinkedQueue<byte[]>());
+    }
+
+    /**
+     * Returns an array of at least <code>size</code> bytes, whose contents are undefined.
+     */
+    public byte[] acquire(int size) {
+        if (size > MAX_SIZE)
+            return new byte[size];
+        int bucket = bucketFor(size);
+        byte[] array = buckets.get(bucket).poll();
+        if (array == null)
+            return new byte[MIN_SIZE << bucket];
+        pooled.addAndGet(-array.length);
+        return array;
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not use it afterwards.
+     */
+    public void release(byte[] array) {
+        int size = array.length;
+        if (size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1)
+            return;
+        if (pooled.addAndGet(size) > capacity) {
+            pooled.addAndGet(-size);
+            return;
+        }
+        buckets.get(bucketFor(size)).offer(array);
+    }
+
+    private static int bucketFor(int size) {
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -28,9 +28,12 @@ public class ClassHeaderReader
     private String[] interfaces;
 
     private InputStream in;
-    private byte[] b = new byte[0x2000];
-    private int[] items = new int[1000];
+    private byte[] buf;
+    private byte[] b;
+    private int[] items = new int[0];
     private int bsize = 0;
+    private int constantPoolCount;
+    private int constantPoolEnd;
     private MyByteArrayInputStream bin = new MyByteArrayInputStream();
     private DataInputStream data = new DataInputStream(bin);
 
@@ -50,79 +53,187 @@ public class ClassHeaderReader
         return interfaces;
     }
 
+    /**
+     * Returns the number of constant pool slots, numbered from 1, as given by
+     * <code>constant_pool_count</code> in the last class read. Slot 0 and the slot following each
+     * Long or Double constant are unusable.
+     */
+    public int getConstantPoolCount() {
+        return constantPoolCount;
+    }
+
+    /**
+     * Returns the tag of a constant pool entry, or 0 for an unusable slot.
+     */
+    public int getConstantPoolTag(int index) {
+        int item = items[index];
+        return item == 0 ? 0 : b[item - 1];
+    }
+
+    /**
+     * Returns the position in {@link #getBuffer} just after the tag of a constant pool entry.
+     */
+    public int getItemOffset(int index) {
+        return items[index];
+    }
+
+    /**
+     * Returns the position in {@link #getBuffer} of the <code>access_flags</code> item that
+     * follows the constant pool.
+     */
+    public int getConstantPoolEnd() {
+        return constantPoolEnd;
+    }
+
+    /**
+     * Returns the buffer holding the class as read so far, which includes the whole constant pool.
+     * The buffer is only valid until the next call to <code>read</code>, and must not be modified.
+     */
+    public byte[] getBuffer() {
+        return b;
+    }
+
+    /**
+     * Returns the number of bytes of {@link #getBuffer} that hold the class, which is the whole
+     * class if it was read from an array.
+     */
+    public int getLength() {
+        return bsize;
+    }
+
+    /**
+     * Returns the position in {@link #getBuffer} of the modified UTF-8 bytes of a CONSTANT_Utf8
+     * entry.
+     */
+    public int getUtf8Offset(int index) {
+        return items[index] + 2;
+    }
+
+    /**
+     * Returns the number of modified UTF-8 bytes in a CONSTANT_Utf8 entry.
+     */
+    public int getUtf8Length(int index) {
+        return readUnsignedShort(items[index]);
+    }
+
+    /**
+     * Decodes a CONSTANT_Utf8 entry.
+     */
+    public String getUtf8(int index) throws IOException {
+        bin.readFrom(b, items[index]);
+        return data.readUTF();
+    }
+
     public void read(InputStream in) throws IOException {
         try {
+            if (buf == null)
+                buf = new byte[0x2000];
             this.in = in;
+            b = buf;
             bsize = 0;
-            access = 0;
-            thisClass = superClass = null;
-            interfaces = null;
-
-            try {
-                buffer(4);
-            } catch (IOException e) {
-                // ignore
-            }
-            if (b[0] != (byte)0xCA || b[1] != (byte)0xFE || b[2] != (byte)0xBA || b[3] != (byte)0xBE)
-                throw new ClassFormatError("Bad magic number");
-
-            buffer(6);
-            readUnsignedShort(4); // minorVersion
-            readUnsignedShort(6); // majorVersion
-            // TODO: check version
-            int constant_pool_count = readUnsignedShort(8);
-            items = (int[])resizeArray(items, constant_pool_count);
-
-            int index = 10;
-            for (int i = 1; i < constant_pool_count; i++) {
-                int size;
-                buffer(index + 3); // TODO: reduce calls to buffer
-                int tag = b[index];
-                items[i] = index + 1;
-                switch (tag) {
-                case 9:  // Fieldref
-                case 10: // Methodref
-                case 11: // InterfaceMethodref
-                case 3:  // Integer
-                case 4:  // Float
-                case 12: // NameAndType
-                    size = 4;
-                    break;
-                case 5:  // Long
-                case 6:  // Double
-                    size = 8;
-                    i++;
-                    break;
-                case 1:  // Utf8
-                    size = 2 + readUnsignedShort(index + 1);
-                    break;
-                case 7:  // Class
-                case 8:  // String
-                    size = 2;
-                    break;
-                default:
-                    throw new IllegalStateException("Unknown constant pool tag " + tag);
-                }
-                index += size + 1;
-            }
-            buffer(index + 8);
-            access = readUnsignedShort(index);
-            thisClass = readClass(index + 2);
-            superClass = readClass(index + 4);
-            int interfaces_count = readUnsignedShort(index + 6);
-        
-            index += 8;
-            buffer(index + interfaces_count * 2);
-            interfaces = new String[interfaces_count];
-            for (int i = 0; i < interfaces_count; i++) {
-                interfaces[i] = readClass(index);
-                index += 2;
-            }
+            parse();
         } finally {
             in.close();
         }
     }
 
+    /**
+     * Reads the header of a class held in memory, without copying it.
+     */
+    public void read(byte[] data) throws IOException {
+        read(data, data.length);
+    }
+
+    /**
+     * Reads the header of a class held in the first <code>length</code> bytes of an array, without
+     * copying it.
+     */
+    public void read(byte[] data, int length) throws IOException {
+        in = null;
+        b = data;
+        bsize = length;
+        parse();
+    }
+
+    private void parse() throws IOException {
+        access = 0;
+        thisClass = superClass = null;
+        interfaces = null;
+        constantPoolCount = 0;
+        constantPoolEnd = 0;
+
+        try {
+            buffer(4);
+        } catch (IOException e) {
+            // ignore
+        }
+        if (bsize < 4 || b[0] != (byte)0xCA || b[1] != (byte)0xFE || b[2] != (byte)0xBA || b[3] != (byte)0xBE)
+            throw new ClassFormatError("Bad magic number");
+
+        buffer(6);
+        readUnsignedShort(4); // minorVersion
+        readUnsignedShort(6); // majorVersion
+        // TODO: check version
+        int constant_pool_count = readUnsignedShort(8);
+        items = (int[])resizeArray(items, constant_pool_count);
+        constantPoolCount = constant_pool_count;
+
+        int index = 10;
+        for (int i = 1; i < constant_pool_count; i++) {
+            int size;
+            buffer(index + 3); // TODO: reduce calls to buffer
+            int tag = b[index];
+            items[i] = index + 1;
+            switch (tag) {
+            case 9:  // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 3:  // Integer
+            case 4:  // Float
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                size = 4;
+                break;
+            case 5:  // Long
+            case 6:  // Double
+                size = 8;
+                items[++i] = 0;
+                break;
+            case 1:  // Utf8
+                size = 2 + readUnsignedShort(index + 1);
+                break;
+            case 15: // MethodHandle
+                size = 3;
+                break;
+            case 7:  // Class
+            case 8:  // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                size = 2;
+                break;
+            default:
+                throw new IllegalStateException("Unknown constant pool tag " + tag);
+            }
+            index += size + 1;
+        }
+        constantPoolEnd = index;
+        buffer(index + 8);
+        access = readUnsignedShort(index);
+        thisClass = readClass(index + 2);
+        superClass = readClass(index + 4);
+        int interfaces_count = readUnsignedShort(index + 6);
+        
+        index += 8;
+        buffer(index + interfaces_count * 2);
+        interfaces = new String[interfaces_count];
+        for (int i = 0; i < interfaces_count; i++) {
+            interfaces[i] = readClass(index);
+            index += 2;
+        }
+    }
+
     private String readClass(int index) throws IOException {
         index = readUnsignedShort(index);
         if (index == 0)
@@ -139,8 +250,13 @@ public class ClassHeaderReader
 
     private static final int CHUNK = 2048;
     private void buffer(int amount) throws IOException {
-        if (amount > b.length)
-            b = (byte[])resizeArray(b, b.length * 2);
+        if (in == null) {
+            if (amount > bsize)
+                throw new EOFException();
+            return;
+        }
+        while (amount > b.length)
+            b = buf = (byte[])resizeArray(b, b.length * 2);
         if (amount > bsize) {
             int rounded = (int)(CHUNK * Math.ceil((float)amount / CHUNK));
             bsize += read(in, b, bsize, rounded - bsize);
@@ -38,7 +38,7 @@ public class ClassPathIterator implements Iterator<ClassPathEntry>
     private final Iterator<File> files;
     private Iterator<ClassPathEntry> entries = Collections.<ClassPathEntry>emptyList().iterator();
     private ClassPathEntry next;
-    private List<ZipFile> zips = new ArrayList<ZipFile>();
+    private List<ZipReader> zips = new ArrayList<ZipReader>();
 
     public ClassPathIterator(String classPath) throws IOException {
         this(new File(System.getProperty("user.dir")), classPath, null);
@@ -87,7 +87,7 @@ public class ClassPathIterator implements Iterator<ClassPathEntry>
     /** Closes all zip files opened by this iterator. */
     public void close() throws IOException {
       next = null;
-      for (ZipFile zip : zips) {
+      for (ZipReader zip : zips) {
         zip.close();
       }
     }
@@ -115,12 +115,8 @@ public class ClassPathIterator implements Iterator<ClassPathEntry>
                 return;
             }
             File file = files.next();
-            if (hasExtension(file.getName(), ".jar")) {
-                ZipFile zip = new JarFile(file);
-                zips.add(zip);
-                entries = new ZipIterator(zip);
-            } else if (hasExtension(file.getName(), ".zip")) {
-                ZipFile zip = new ZipFile(file);
+            if (hasExtension(file.getName(), ".jar") || hasExtension(file.getName(), ".zip")) {
+                ZipReader zip = new ZipReader(file);
                 zips.add(zip);
                 entries = new ZipIterator(zip);
             } else if (file.isDirectory()) {
@@ -141,16 +137,16 @@ public class ClassPathIterator implements Iterator<ClassPathEntry>
     }
 
     private static class ZipIterator implements Iterator<ClassPathEntry> {
-      private final ZipFile zip;
-      private final Enumeration<? extends ZipEntry> entries;
+      private final ZipReader zip;
+      private final Iterator<ZipReader.Entry> entries;
 
-      ZipIterator(ZipFile zip) {
+      ZipIterator(ZipReader zip) {
         this.zip = zip;
-        this.entries = zip.entries();
+        this.entries = zip.getEntries().iterator();
       }
 
       public boolean hasNext() {
-        return entries.hasMoreElements();
+        return entries.hasNext();
       }
 
       public void remove() {
@@ -158,10 +154,10 @@ public class ClassPathIterator implements Iterator<ClassPathEntry>
       }
 
       public ClassPathEntry next() {
-        final ZipEntry entry = entries.nextElement();
+        final ZipReader.Entry entry = entries.next();
         return new ClassPathEntry() {
           public String getSource() {
-            return zip.getName();
+            return zip.getFile().getPath();
           }
 
           public String getName() {
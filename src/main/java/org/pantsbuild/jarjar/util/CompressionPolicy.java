@@ -0,0 +1,110 @@
+package org.pantsbuild.jarjar.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how each entry of an output jar is compressed: deflated at a given level, or stored.
+ * <p>
+ * A policy is written as a comma-separated list. An item of the form <code>pattern=setting</code>
+ * applies to the entries whose names match the pattern, in which <code>*</code> stands for any
+ * run of characters; the first matching item wins. A single item without a pattern applies to
+ * every other entry. A setting is either <code>stored</code> or a deflate level from 0 to 9, so
+ * for example <code>1,*.png=stored,*.jar=stored</code> deflates quickly except for files that
+ * are already compressed.
+ */
+public class CompressionPolicy
+{
+    /**
+     * The level returned for entries that are stored without compression.
+     */
+    public static final int STORED = -2;
+
+    /**
+     * Deflates every entry at the default level.
+     */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy();
+
+    private final List<String> patterns = new ArrayList<String>();
+    private final List<Integer> levels = new ArrayList<Integer>();
+    private int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the policy is malformed
+     */
+    public static CompressionPolicy parse(String policy) {
+        CompressionPolicy result = new CompressionPolicy();
+        boolean hasDefault = false;
+        for (String item : policy.split(",")) {
+            item = item.trim();
+            int eq = item.lastIndexOf('=');
+            if (eq < 0) {
+                if (hasDefault) {
+                    throw new IllegalArgumentException(
+                        "More than one default in compression policy: " + policy);
+                }
+                result.defaultLevel = parseSetting(item, policy);
+                hasDefault = true;
+            } else {
+                String pattern = item.substring(0, eq).trim();
+                if (pattern.length() == 0) {
+                    throw new IllegalArgumentException(
+                        "Missing pattern in compression policy: " + policy);
+                }
+                result.patterns.add(pattern);
+                result.levels.add(parseSetting(item.substring(eq + 1).trim(), policy));
+            }
+        }
+        return result;
+    }
+
+    private static int parseSetting(String setting, String policy) {
+        if (setting.equals("stored"))
+            return STORED;
+        if (setting.length() == 1 && setting.charAt(0) >= '0' && setting.charAt(0) <= '9')
+            return setting.charAt(0) - '0';
+        throw new IllegalArgumentException(
+            "Invalid setting \"" + setting + "\" in compression policy: " + policy);
+    }
+
+    /**
+     * Returns the deflate level for an entry, or {@link #STORED}.
+     */
+    public int getLevel(String name) {
+        for (int i = 0, size = patterns.size(); i < size; i++) {
+            if (matches(patterns.get(i), name))
+                return levels.get(i);
+        }
+        return defaultLevel;
+    }
+
+    static boolean matches(String pattern, String name) {
+        int star = pattern.indexOf('*');
+        if (star < 0)
+            return pattern.equals(name);
+        if (!name.startsWith(pattern.substring(0, star)))
+            return false;
+        int pos = star;
+        int end = name.length();
+        int last = pattern.lastIndexOf('*');
+        String suffix = pattern.substring(last + 1);
+        if (end - pos < suffix.length() || !name.endsWith(suffix))
+            return false;
+        end -= suffix.length();
+        // Each literal between two stars is matched at its first occurrence.
+        while (star < last) {
+            int next = pattern.indexOf('*', star + 1);
+            String part = pattern.substring(star + 1, next);
+            int found = name.indexOf(part, pos);
+            if (found < 0 || found + part.length() > end)
+                return false;
+            pos = found + part.length();
+            star = next;
+        }
+        return true;
+    }
+}
@@ -16,9 +16,106 @@
 
 package org.pantsbuild.jarjar.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
 public class EntryStruct {
+    /**
+     * The contents of the entry. This is <code>null</code> for large resources read by {@link
+     * StandaloneJarProcessor}, which are copied straight from the input jar to the output unless a
+     * processor sets it; such processors can read the original contents with {@link #openStream}.
+     * <p>
+     * The contents may be only part of the array, see {@link #setData}; processors reading
+     * <code>data</code> should use {@link #getOffset} and {@link #getLength}. An array assigned
+     * directly is used whole. Arrays read by {@link StandaloneJarProcessor} are reused once the
+     * entry is written, so processors must not keep a reference to them.
+     */
     public byte[] data;
     public String name;
     public long time;
     public boolean skipTransform;
+
+    // The entry this struct was read from, and the data as read, so that an entry whose data no
+    // processor replaced can be copied to the output without being compressed again.
+    ZipReader reader;
+    ZipReader.Entry source;
+    byte[] sourceData;
+
+    // The data as it will be written, when it was compressed before reaching the writer.
+    ZipWriter.Compressed compressed;
+
+    // The range of data set by setData, which applies while data is still viewData.
+    private byte[] viewData;
+    private int viewOffset;
+    private int viewLength;
+
+    private ClassHeaderReader header;
+    private byte[] headerData;
+    private int headerLength;
+
+    /**
+     * Sets the contents of the entry to <code>length</code> bytes of an array starting at
+     * <code>offset</code>.
+     */
+    public void setData(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > array.length)
+            throw new IndexOutOfBoundsException("Invalid range of " + name);
+        data = viewData = array;
+        viewOffset = offset;
+        viewLength = length;
+    }
+
+    /**
+     * Returns the position in <code>data</code> at which the contents start.
+     */
+    public int getOffset() {
+        return data == viewData ? viewOffset : 0;
+    }
+
+    /**
+     * Returns the number of bytes of <code>data</code> holding the contents.
+     */
+    public int getLength() {
+        return data == viewData ? viewLength : data.length;
+    }
+
+    /**
+     * Opens the contents of the entry, reading them from the input jar if they were not loaded.
+     */
+    public InputStream openStream() throws IOException {
+        if (data == null && source != null)
+            return reader.getInputStream(source);
+        return new ByteArrayInputStream(data, getOffset(), getLength());
+    }
+
+    /**
+     * Returns the header of the class held in <code>data</code>, parsed on first use and shared
+     * by all processors until <code>data</code> is replaced.
+     *
+     * @throws IOException if <code>data</code> is not a readable class file
+     */
+    public ClassHeaderReader getClassHeader() throws IOException {
+        int length = getLength();
+        if (header == null || headerData != data || headerLength != length) {
+            ClassHeaderReader reader = new ClassHeaderReader();
+            try {
+                int offset = getOffset();
+                if (offset == 0) {
+                    reader.read(data, length);
+                } else {
+                    reader.read(Arrays.copyOfRange(data, offset, offset + length));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Unable to read class header of " + name, e);
+            } catch (ClassFormatError e) {
+                throw new IOException("Unable to read class header of " + name, e);
+            }
+            header = reader;
+            headerData = data;
+            headerLength = length;
+        }
+        return header;
+    }
 }
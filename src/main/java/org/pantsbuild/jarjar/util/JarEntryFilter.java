@@ -0,0 +1,21 @@
+package org.pantsbuild.jarjar.util;
+
+/**
+ * Implemented by a {@link JarProcessor} that can discard some entries by their name alone, so that
+ * the contents of those entries need not be read at all.
+ * <p>
+ * Filtering is an optimization: a processor must still discard in {@link JarProcessor#process}
+ * every entry it rejects here, since callers are free to skip the filter.
+ */
+public interface JarEntryFilter
+{
+    /**
+     * Returns <code>false</code> if the entry with the given name, as read from the input, would
+     * be discarded by the processor whatever its contents. Must be safe to call from several
+     * threads at once, and must not change any state that {@link JarProcessor#process} relies on.
+     *
+     * @param name the name of the entry
+     * @return <code>true</code> if the entry must be read and processed
+     */
+    boolean accept(String name);
+}
@@ -0,0 +1,158 @@
+package org.pantsbuild.jarjar.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes processed entries to a jar in a single pass.
+ * <p>
+ * Directory entries are held back until a file below them is written, so directories left empty
+ * by the processor (for example because every class in them was renamed or zapped) never make it
+ * into the output. Duplicate directories are dropped; duplicate files are an error.
+ * <p>
+ * Entries read by the given {@link ZipReader} whose data came out of the processors unchanged, and
+ * that are already stored or deflated as the {@link CompressionPolicy} asks, are copied in their
+ * compressed form rather than being written again. A deflated entry is copied whatever level the
+ * policy gives. Other entries are compressed as the policy says.
+ */
+class JarEntryWriter
+{
+    private final ZipWriter out;
+    private final ZipReader in;
+    private final String source;
+    private final CompressionPolicy policy;
+    private final Set<String> entries = new HashSet<String>();
+    private final Map<String, EntryStruct> pendingDirs = new HashMap<String, EntryStruct>();
+    private final Set<String> populatedDirs = new HashSet<String>();
+
+    /**
+     * @param out the stream to write the jar to
+     * @param in the archive the entries were read from, or <code>null</code>
+     * @param source the name of the input, used in error messages
+     * @param policy how to compress the entries
+     */
+    public JarEntryWriter(OutputStream out, ZipReader in, String source,
+                          CompressionPolicy policy) {
+        this.out = new ZipWriter(out);
+        this.in = in;
+        this.source = source;
+        this.policy = policy;
+    }
+
+    /**
+     * Writes an entry, ignoring <code>null</code> (discarded) entries.
+     */
+    public void write(EntryStruct struct) throws IOException {
+        if (struct == null)
+            return;
+        if (struct.name.endsWith("/")) {
+            if (!entries.add(struct.name)) {
+                // TODO(chrisn): log
+            } else if (populatedDirs.contains(struct.name)) {
+                writeEntry(struct);
+            } else {
+                pendingDirs.put(struct.name, struct);
+            }
+        } else if (entries.add(struct.name)) {
+            writeParentDirs(struct.name);
+            writeEntry(struct);
+        } else {
+            throw new DuplicateJarEntryException(source, struct.name);
+        }
+    }
+
+    /**
+     * Compresses the data of an entry ahead of {@link #write}, unless it will be copied from the
+     * input as it is. Safe to call from any thread; the entry must not change afterwards.
+     */
+    public void prepare(EntryStruct struct) {
+        int level = policy.getLevel(struct.name);
+        if (struct.data != null && !canCopy(struct, level)) {
+            struct.compressed =
+                ZipWriter.compress(struct.data, struct.getOffset(), struct.getLength(), level);
+        }
+    }
+
+    /**
+     * Finishes the jar, discarding any directories that never received a child.
+     */
+    public void close() throws IOException {
+        pendingDirs.clear();
+        out.close();
+    }
+
+    private void writeParentDirs(String name) throws IOException {
+        List<String> newDirs = new ArrayList<String>();
+        for (int slash = name.lastIndexOf('/'); slash >= 0; slash = name.lastIndexOf('/', slash - 1)) {
+            String dir = name.substring(0, slash + 1);
+            if (!populatedDirs.add(dir))
+                break;
+            newDirs.add(dir);
+        }
+        for (int i = newDirs.size() - 1; i >= 0; i--) {
+            EntryStruct dir = pendingDirs.remove(newDirs.get(i));
+            if (dir != null)
+                writeEntry(dir);
+        }
+    }
+
+    private void writeEntry(EntryStruct struct) throws IOException {
+        if (struct.compressed != null) {
+            out.write(struct.name, struct.time, struct.compressed);
+            return;
+        }
+        int level = policy.getLevel(struct.name);
+        if (canCopy(struct, level)) {
+            out.copy(struct.name, struct.time, in, struct.source);
+        } else if (struct.data == null) {
+            // A large entry that was never read is streamed from the input instead.
+            InputStream data = in.getInputStream(struct.source);
+            try {
+                out.write(struct.name, struct.time, data, struct.source.getSize(),
+                    struct.source.getCrc(), level);
+            } finally {
+                data.close();
+            }
+        } else {
+            out.write(struct.name, struct.time, struct.data, struct.getOffset(),
+                struct.getLength(), level);
+        }
+    }
+
+    /**
+     * Returns whether an entry can be copied from the input as it is.
+     */
+    private boolean canCopy(EntryStruct struct, int level) {
+        if (!isUnchanged(struct))
+            return false;
+        boolean stored = struct.source.getMethod() == ZipEntry.STORED;
+        return stored == (level == CompressionPolicy.STORED);
+    }
+
+    private boolean isUnchanged(EntryStruct struct) {
+        if (in == null || struct.source == null)
+            return false;
+        // Large entries that were never read have no data on either side.
+        byte[] data = struct.data, sourceData = struct.sourceData;
+        if (data == null || sourceData == null)
+            return data == sourceData;
+        int offset = struct.getOffset(), length = struct.getLength();
+        if (length != struct.source.getSize())
+            return false;
+        if (data == sourceData && offset == 0)
+            return true;
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != sourceData[i])
+                return false;
+        }
+        return true;
+    }
+}
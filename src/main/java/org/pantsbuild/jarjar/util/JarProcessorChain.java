@@ -18,7 +18,7 @@ package org.pantsbuild.jarjar.util;
 
 import java.io.IOException;
 
-public class JarProcessorChain implements JarProcessor
+public class JarProcessorChain implements JarProcessor, JarEntryFilter
 {
     private final JarProcessor[] chain;
 
@@ -41,5 +41,19 @@ public class JarProcessorChain implements JarProcessor
         }
         return true;
     }
+
+    /**
+     * Asks the processors at the start of the chain that are {@link JarEntryFilter}s. The first
+     * processor that is not a filter may rename the entry, so the ones after it are not asked.
+     */
+    public boolean accept(String name) {
+        for (JarProcessor processor : chain) {
+            if (!(processor instanceof JarEntryFilter))
+                break;
+            if (!((JarEntryFilter) processor).accept(name))
+                return false;
+        }
+        return true;
+    }
 }
   
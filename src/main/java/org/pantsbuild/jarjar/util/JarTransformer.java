@@ -27,7 +27,7 @@ abstract public class JarTransformer implements JarProcessor {
         if (struct.name.endsWith(".class") && !struct.skipTransform) {
             ClassReader reader;
             try {
-                reader = new ClassReader(struct.data);
+                reader = new ClassReader(struct.data, struct.getOffset(), struct.getLength());
             } catch (RuntimeException e) {
                 System.err.println("Unable to read bytecode from " + struct.name);
                 e.printStackTrace();
@@ -0,0 +1,100 @@
+package org.pantsbuild.jarjar.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a {@link JarProcessor} over jar entries on a fixed pool of worker threads, handing the
+ * processed entries back in the order they were submitted so that the output stays deterministic.
+ * <p>
+ * The wrapped processor is called concurrently and must be thread-safe. Only a bounded number of
+ * entries are in flight at once; callers are expected to drain results with {@link #next} whenever
+ * {@link #isFull} returns <code>true</code>.
+ */
+public class ParallelJarProcessor
+{
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final JarProcessor proc;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final LinkedList<Future<EntryStruct>> pending = new LinkedList<Future<EntryStruct>>();
+
+    public ParallelJarProcessor(JarProcessor proc, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        this.proc = proc;
+        this.executor = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+        this.maxPending = parallelism * PENDING_PER_THREAD;
+    }
+
+    /**
+     * Queues an entry. The reader is invoked on a worker thread, so it can do the work of
+     * inflating the entry as well.
+     *
+     * @param reader produces the entry to run through the processor
+     */
+    public void submit(final Callable<EntryStruct> reader) {
+        pending.add(executor.submit(new Callable<EntryStruct>() {
+            public EntryStruct call() throws Exception {
+                EntryStruct struct = reader.call();
+                return proc.process(struct) ? struct : null;
+            }
+        }));
+    }
+
+    public boolean isFull() {
+        return pending.size() >= maxPending;
+    }
+
+    public boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Waits for the oldest outstanding entry.
+     *
+     * @return the processed entry, or <code>null</code> if the processor discarded it
+     * @throws IOException if reading or processing the entry failed
+     */
+    public EntryStruct next() throws IOException {
+        return get(pending.removeFirst());
+    }
+
+    /**
+     * Waits for a task, rethrowing whatever it threw.
+     */
+    static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing jar entries");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the worker threads, abandoning any entries that have not been collected.
+     */
+    public void shutdown() {
+        for (Future<EntryStruct> future : pending)
+            future.cancel(true);
+        pending.clear();
+        executor.shutdownNow();
+    }
+}
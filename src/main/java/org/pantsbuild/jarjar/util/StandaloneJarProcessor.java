@@ -16,57 +16,278 @@
 
 package org.pantsbuild.jarjar.util;
 
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
-import java.util.*;
 
 public class StandaloneJarProcessor
 {
+    // The most bytes kept in buffers between entries.
+    private static final long POOL_CAPACITY = 16 << 20;
+
+    // The most entries waiting between two stages of the pipeline.
+    private static final int PIPELINE_CAPACITY = 16;
+
+    // Marks the end of the entries in a pipeline queue.
+    private static final EntryStruct END = new EntryStruct();
+
+    private final JarProcessor proc;
+    private final BufferPool pool = new BufferPool(POOL_CAPACITY);
+    private int parallelism = 1;
+    private boolean pipelined;
+    private CompressionPolicy compression = CompressionPolicy.DEFAULT;
+
+    public StandaloneJarProcessor(JarProcessor proc) {
+        this.proc = proc;
+    }
+
+    /**
+     * Sets the number of threads used to read and process entries. With more than one thread the
+     * processor must be thread-safe; entries are still written in the order of the input jar.
+     *
+     * @param parallelism the number of worker threads, or 1 to process entries on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets whether a single-threaded run reads, processes and writes entries on three threads of
+     * their own, so that inflating, transforming and deflating overlap. The processor is still
+     * called for one entry at a time, in order. Has no effect with more than one thread, where
+     * the workers already read and process entries while the calling thread writes them.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Sets how the entries of the output are compressed. Entries that come out of the processor
+     * unchanged are copied from the input without being compressed again if they are already
+     * stored or deflated as the policy asks. Defaults to {@link CompressionPolicy#DEFAULT}.
+     */
+    public void setCompressionPolicy(CompressionPolicy compression) {
+        this.compression = compression;
+    }
+
     public static void run(File from, File to, JarProcessor proc) throws IOException {
-        byte[] buf = new byte[0x2000];
+        new StandaloneJarProcessor(proc).run(from, to);
+    }
 
-        JarFile in = new JarFile(from);
-        final File tmpTo = File.createTempFile("jarjar", ".jar");
-        BufferedOutputStream buffered = new BufferedOutputStream(new FileOutputStream(tmpTo));
-        JarOutputStream out = new JarOutputStream(buffered);
-        Set<String> entries = new HashSet<String>();
+    /**
+     * Processes <code>from</code> into <code>to</code>. The output is written to a temporary file
+     * next to <code>to</code> and renamed into place once complete, so <code>from</code> and
+     * <code>to</code> may be the same file.
+     */
+    public void run(File from, File to) throws IOException {
+        ZipReader in = new ZipReader(from);
+        final File tmpTo = File.createTempFile("jarjar", ".jar",
+            to.getAbsoluteFile().getParentFile());
+        boolean complete = false;
         try {
-            Enumeration<JarEntry> e = in.entries();
-            while (e.hasMoreElements()) {
-                EntryStruct struct = new EntryStruct();
-                JarEntry entry = e.nextElement();
-                struct.name = entry.getName();
-                struct.time = entry.getTime();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IoUtil.pipe(in.getInputStream(entry), baos, buf);
-                struct.data = baos.toByteArray();
-                if (proc.process(struct)) {
-                    if (entries.add(struct.name)) {
-                        entry = new JarEntry(struct.name);
-                        entry.setTime(struct.time);
-                        entry.setCompressedSize(-1);
-                        out.putNextEntry(entry);
-                        out.write(struct.data);
-                    } else if (struct.name.endsWith("/")) {
-                        // TODO(chrisn): log
+            BufferedOutputStream buffered = new BufferedOutputStream(new FileOutputStream(tmpTo));
+            JarEntryWriter out =
+                new JarEntryWriter(buffered, in, from.getAbsolutePath(), compression);
+            try {
+                process(in, out);
+            }
+            finally {
+                in.close();
+                out.close();
+            }
+            IoUtil.rename(tmpTo, to);
+            complete = true;
+        } finally {
+            if (!complete)
+                tmpTo.delete();
+        }
+    }
+
+    /**
+     * Runs every entry of <code>from</code> through the processor without writing anything, for
+     * processors that only gather information.
+     */
+    public void read(File from) throws IOException {
+        ZipReader in = new ZipReader(from);
+        try {
+            process(in, null);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void process(final ZipReader in, JarEntryWriter out) throws IOException {
+        JarEntryFilter filter = (proc instanceof JarEntryFilter) ? (JarEntryFilter) proc : null;
+        if (pipelined && parallelism == 1) {
+            pipeline(in, out, filter);
+            return;
+        }
+        ParallelJarProcessor parallel = null;
+        try {
+            if (parallelism > 1) {
+                JarProcessor workerProc =
+                    (out == null) ? proc : new CompressingProcessor(proc, out);
+                parallel = new ParallelJarProcessor(workerProc, parallelism);
+            }
+            for (final ZipReader.Entry entry : in.getEntries()) {
+                if (filter != null && !filter.accept(entry.getName()))
+                    continue;
+                if (parallel == null) {
+                    EntryStruct struct = readEntry(in, entry);
+                    if (proc.process(struct)) {
+                        write(out, struct);
                     } else {
-                        throw new DuplicateJarEntryException(from.getAbsolutePath(), struct.name);
+                        release(struct);
                     }
+                    continue;
                 }
+                parallel.submit(new Callable<EntryStruct>() {
+                    public EntryStruct call() throws IOException {
+                        return readEntry(in, entry);
+                    }
+                });
+                while (parallel.isFull())
+                    write(out, parallel.next());
             }
-
+            while (parallel != null && parallel.hasNext())
+                write(out, parallel.next());
         }
         finally {
-            in.close();
-            out.close();
+            if (parallel != null)
+                parallel.shutdown();
+        }
+    }
+
+    /**
+     * Runs the entries through a reading thread, a processing thread and the calling thread, which
+     * writes them. The threads are joined by bounded queues, so that a slow stage holds back the
+     * others instead of letting entries pile up in memory.
+     */
+    private void pipeline(final ZipReader in, JarEntryWriter out, final JarEntryFilter filter)
+        throws IOException {
+        final BlockingQueue<EntryStruct> read =
+            new ArrayBlockingQueue<EntryStruct>(PIPELINE_CAPACITY);
+        final BlockingQueue<EntryStruct> processed =
+            new ArrayBlockingQueue<EntryStruct>(PIPELINE_CAPACITY);
+        ExecutorService executor = Executors.newFixedThreadPool(2, new WorkerThreadFactory());
+        try {
+            Future<Void> reading = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        for (ZipReader.Entry entry : in.getEntries()) {
+                            if (filter == null || filter.accept(entry.getName()))
+                                read.put(readEntry(in, entry));
+                        }
+                    } finally {
+                        read.put(END);
+                    }
+                    return null;
+                }
+            });
+            Future<Void> processing = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        for (EntryStruct struct; (struct = read.take()) != END; ) {
+                            if (proc.process(struct)) {
+                                processed.put(struct);
+                            } else {
+                                release(struct);
+                            }
+                        }
+                    } finally {
+                        processed.put(END);
+                    }
+                    return null;
+                }
+            });
+            for (EntryStruct struct; (struct = take(processed)) != END; )
+                write(out, struct);
+            // A failed stage ends the queue early. The processing stage is checked first, as
+            // the reading stage may still be blocked on the queue it no longer drains.
+            ParallelJarProcessor.get(processing);
+            ParallelJarProcessor.get(reading);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compresses each entry the processor keeps, so that with several threads the entries are
+     * deflated by the workers rather than by the thread writing the jar.
+     */
+    private static class CompressingProcessor implements JarProcessor
+    {
+        private final JarProcessor proc;
+        private final JarEntryWriter out;
+
+        CompressingProcessor(JarProcessor proc, JarEntryWriter out) {
+            this.proc = proc;
+            this.out = out;
         }
 
-         // delete the empty directories
-        IoUtil.copyZipWithoutEmptyDirectories(tmpTo, to);
-        tmpTo.delete();
+        public boolean process(EntryStruct struct) throws IOException {
+            if (!proc.process(struct))
+                return false;
+            out.prepare(struct);
+            return true;
+        }
+    }
+
+    private static EntryStruct take(BlockingQueue<EntryStruct> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing jar entries");
+        }
+    }
+
+    /**
+     * Writes an entry, if there is an output, and releases its buffer.
+     */
+    private void write(JarEntryWriter out, EntryStruct struct) throws IOException {
+        if (out != null)
+            out.write(struct);
+        release(struct);
+    }
+
+    /**
+     * Reads an entry into a buffer from the pool. Large entries other than classes are left
+     * unread, see {@link EntryStruct#data}.
+     */
+    private EntryStruct readEntry(ZipReader in, ZipReader.Entry entry) throws IOException {
+        EntryStruct struct = new EntryStruct();
+        struct.name = entry.getName();
+        struct.time = entry.getTime();
+        long size = entry.getSize();
+        if (size == 0 || entry.isDirectory()) {
+            // Directories may wait in the writer for a child, so they keep arrays of their own.
+            struct.data = in.read(entry);
+        } else if (size <= ZipReader.LARGE_ENTRY_SIZE || entry.getName().endsWith(".class")) {
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Entry too large to read into memory: " + entry.getName());
+            byte[] buf = pool.acquire((int) size);
+            in.read(entry, buf);
+            struct.setData(buf, 0, (int) size);
+        }
+        struct.reader = in;
+        struct.source = entry;
+        struct.sourceData = struct.data;
+        return struct;
+    }
 
+    /**
+     * Returns the buffer an entry was read into to the pool, once the entry has been written or
+     * discarded.
+     */
+    private void release(EntryStruct struct) {
+        if (struct != null && struct.sourceData != null)
+            pool.release(struct.sourceData);
     }
 }
@@ -0,0 +1,18 @@
+package org.pantsbuild.jarjar.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the numbered daemon threads that jarjar runs its worker pools on.
+ */
+public class WorkerThreadFactory implements ThreadFactory
+{
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "jarjar-worker-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
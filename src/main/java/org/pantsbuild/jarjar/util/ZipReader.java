@@ -0,0 +1,547 @@
+package org.pantsbuild.jarjar.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip archive through its central directory.
+ * <p>
+ * Unlike {@link java.util.zip.ZipFile} this exposes where each entry's compressed bytes live, so
+ * that they can be copied to another archive without being inflated and deflated again. The
+ * archive is memory-mapped and the central directory parsed once when it is opened. After that
+ * reads take no locks and may be issued from several threads, each of which inflates with an
+ * {@link Inflater} of its own that is kept for later reads.
+ * <p>
+ * Archives too large to map in one piece, and all archives on Windows, where a mapped file could
+ * not be replaced until the mapping is garbage collected, are read with positional reads instead.
+ * As with <code>ZipFile</code>, an archive may be preceded by other data, such as a launcher
+ * script.
+ */
+public class ZipReader
+{
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CHUNK_SIZE = 0x10000;
+
+    // Entries larger than this are streamed rather than read into memory where possible.
+    static final int LARGE_ENTRY_SIZE = 1 << 20;
+
+    private static final boolean MAP =
+        !System.getProperty("os.name", "").startsWith("Windows");
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer map;
+    private final List<Entry> entries;
+
+    public ZipReader(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        try {
+            this.channel = raf.getChannel();
+            long length = channel.size();
+            this.map = (MAP && length <= Integer.MAX_VALUE)
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length) : null;
+            this.entries = Collections.unmodifiableList(readCentralDirectory(length));
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the entries in central directory order, which is the order {@link
+     * java.util.zip.ZipFile#entries} uses as well.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads and inflates the contents of an entry into an array of exactly its size.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE)
+            throw new ZipException("Entry too large to read into memory: " + entry.name);
+        byte[] data = new byte[(int) entry.size];
+        read(entry, data);
+        return data;
+    }
+
+    /**
+     * Reads and inflates the contents of an entry into the start of an array, which must be at
+     * least {@link Entry#getSize} bytes long.
+     *
+     * @throws ZipException if the data is invalid or does not match the entry's CRC
+     */
+    public void read(Entry entry, byte[] data) throws IOException {
+        if (entry.size > data.length)
+            throw new IllegalArgumentException("Array too small for " + entry.name);
+        int size = (int) entry.size;
+        ByteBuffer raw = getRawData(entry);
+        if (entry.method == ZipEntry.STORED) {
+            if (raw.remaining() != size)
+                throw new ZipException("Invalid stored size for " + entry.name);
+            raw.get(data, 0, size);
+            checkCrc(entry, data, size);
+            return;
+        }
+        Inflater inflater = INFLATER.get();
+        byte[] chunk = CHUNK.get();
+        inflater.reset();
+        try {
+            int off = 0;
+            boolean padded = false;
+            while (off < size && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (raw.hasRemaining()) {
+                        int n = Math.min(chunk.length, raw.remaining());
+                        raw.get(chunk, 0, n);
+                        inflater.setInput(chunk, 0, n);
+                    } else if (!padded) {
+                        // The inflater needs an extra dummy byte when the zlib header and trailer
+                        // are omitted.
+                        chunk[0] = 0;
+                        inflater.setInput(chunk, 0, 1);
+                        padded = true;
+                    } else {
+                        break;
+                    }
+                }
+                int n = inflater.inflate(data, off, size - off);
+                if (n == 0 && inflater.needsDictionary())
+                    break;
+                off += n;
+            }
+            if (off != size)
+                throw new ZipException("Invalid compressed data for " + entry.name);
+        } catch (DataFormatException e) {
+            ZipException ze = new ZipException("Invalid compressed data for " + entry.name);
+            ze.initCause(e);
+            throw ze;
+        }
+        checkCrc(entry, data, size);
+    }
+
+    private static void checkCrc(Entry entry, byte[] data, int size) throws ZipException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+        if (crc.getValue() != entry.crc)
+            throw new ZipException("Invalid CRC for " + entry.name);
+    }
+
+    /**
+     * Opens the contents of an entry. Large entries are read and inflated as the stream is
+     * consumed, so they never have to fit in memory; their CRC is checked once the stream reaches
+     * the end, which throws a <code>ZipException</code> on a mismatch.
+     */
+    public InputStream getInputStream(Entry entry) throws IOException {
+        if (entry.size <= LARGE_ENTRY_SIZE)
+            return new ByteArrayInputStream(read(entry));
+        InputStream in = new RawInputStream(getDataOffset(entry), entry.compressedSize);
+        if (entry.method != ZipEntry.STORED)
+            in = new EntryInflaterInputStream(in, entry.name);
+        return new EntryCheckedInputStream(in, entry);
+    }
+
+    /**
+     * Returns the entry's data exactly as stored in the archive. The buffer is a slice of the
+     * mapped archive where possible, and a copy otherwise.
+     */
+    public ByteBuffer getRawData(Entry entry) throws IOException {
+        long pos = getDataOffset(entry);
+        if (pos + entry.compressedSize > channel.size())
+            throw new ZipException("Truncated data for " + entry.name);
+        if (map != null) {
+            ByteBuffer slice = map.duplicate();
+            slice.position((int) pos);
+            slice.limit((int) (pos + entry.compressedSize));
+            return slice.slice();
+        }
+        if (entry.compressedSize > Integer.MAX_VALUE)
+            throw new ZipException("Entry too large to read into memory: " + entry.name);
+        byte[] b = new byte[(int) entry.compressedSize];
+        readFully(pos, b, 0, b.length);
+        return ByteBuffer.wrap(b);
+    }
+
+    /**
+     * Copies the entry's data, exactly as stored in the archive, to <code>out</code>.
+     */
+    public void copyRaw(Entry entry, OutputStream out) throws IOException {
+        byte[] chunk = CHUNK.get();
+        long remaining = entry.compressedSize;
+        long pos = getDataOffset(entry);
+        while (remaining > 0) {
+            int n = (int) Math.min(chunk.length, remaining);
+            readFully(pos, chunk, 0, n);
+            out.write(chunk, 0, n);
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Reads <code>len</code> bytes starting at <code>pos</code> in the archive.
+     */
+    private void readFully(long pos, byte[] b, int off, int len) throws IOException {
+        if (map != null) {
+            if (pos + len > map.limit())
+                throw new EOFException();
+            ByteBuffer view = map.duplicate();
+            view.position((int) pos);
+            view.get(b, off, len);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position() - off) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private long getDataOffset(Entry entry) throws IOException {
+        if (entry.dataOffset < 0) {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            readFully(entry.localHeaderOffset, header, 0, header.length);
+            if (getInt(header, 0) != LOCAL_HEADER_SIG)
+                throw new ZipException("Invalid local header for " + entry.name);
+            entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + getShort(header, 26) + getShort(header, 28);
+        }
+        return entry.dataOffset;
+    }
+
+    private List<Entry> readCentralDirectory(long length) throws IOException {
+        int tailSize = (int) Math.min(length, END_SIZE + 0xFFFF);
+        byte[] tail = new byte[tailSize];
+        readFully(length - tailSize, tail, 0, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == END_SIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new ZipException("Not a zip file: " + file);
+
+        long endPos = length - tailSize + end;
+        long count = getShort(tail, end + 10);
+        long cenSize = getUInt(tail, end + 12);
+        long cenOffset = getUInt(tail, end + 16);
+        long locator = endPos - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && (count == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL)) {
+            byte[] loc = new byte[ZIP64_LOCATOR_SIZE];
+            readFully(locator, loc, 0, loc.length);
+            if (getInt(loc, 0) == ZIP64_LOCATOR_SIG) {
+                // The locator holds the offset the zip64 end record was written at, which data
+                // prepended since would invalidate, so look right before the locator first.
+                byte[] end64 = new byte[ZIP64_END_SIZE];
+                long end64Pos = locator - ZIP64_END_SIZE;
+                if (end64Pos >= 0)
+                    readFully(end64Pos, end64, 0, end64.length);
+                if (end64Pos < 0 || getInt(end64, 0) != ZIP64_END_SIG) {
+                    end64Pos = getLong(loc, 8);
+                    if (end64Pos < 0 || end64Pos + ZIP64_END_SIZE > locator)
+                        throw new ZipException("Invalid zip64 end of central directory in " + file);
+                    readFully(end64Pos, end64, 0, end64.length);
+                    if (getInt(end64, 0) != ZIP64_END_SIG)
+                        throw new ZipException("Invalid zip64 end of central directory in " + file);
+                }
+                count = getLong(end64, 32);
+                cenSize = getLong(end64, 40);
+                cenOffset = getLong(end64, 48);
+                endPos = end64Pos;
+            }
+        }
+        // The recorded offsets are relative to the start of the archive. Data prepended to it
+        // shows as a gap between where they put the end of the central directory and where the
+        // end record is found, as ZipFile also assumes.
+        long base = endPos - cenSize - cenOffset;
+        if (cenSize > Integer.MAX_VALUE || cenOffset < 0 || base < 0)
+            throw new ZipException("Invalid central directory in " + file);
+        cenOffset += base;
+
+        byte[] cen = new byte[(int) cenSize];
+        readFully(cenOffset, cen, 0, cen.length);
+        List<Entry> result = new ArrayList<Entry>((int) Math.min(count, 0x10000));
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= cen.length) {
+            if (getInt(cen, pos) != CENTRAL_HEADER_SIG)
+                throw new ZipException("Invalid central directory in " + file);
+            Entry entry = new Entry();
+            entry.flags = getShort(cen, pos + 8);
+            entry.method = getShort(cen, pos + 10);
+            entry.dosTime = getUInt(cen, pos + 12);
+            entry.crc = getUInt(cen, pos + 16);
+            entry.compressedSize = getUInt(cen, pos + 20);
+            entry.size = getUInt(cen, pos + 24);
+            int nameLen = getShort(cen, pos + 28);
+            int extraLen = getShort(cen, pos + 30);
+            int commentLen = getShort(cen, pos + 32);
+            entry.localHeaderOffset = getUInt(cen, pos + 42);
+            entry.name = decodeName(cen, pos + CENTRAL_HEADER_SIZE, nameLen);
+            readZip64Extra(entry, cen, pos + CENTRAL_HEADER_SIZE + nameLen, extraLen);
+            entry.localHeaderOffset += base;
+            if ((entry.flags & 1) != 0)
+                throw new ZipException("Encrypted entries are not supported: " + entry.name);
+            if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+                throw new ZipException("Unsupported compression method " + entry.method
+                    + " for " + entry.name);
+            result.add(entry);
+            pos += CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+        }
+        return result;
+    }
+
+    private static void readZip64Extra(Entry entry, byte[] b, int off, int len) {
+        int end = off + len;
+        while (off + 4 <= end) {
+            int id = getShort(b, off);
+            int size = getShort(b, off + 2);
+            off += 4;
+            if (id == ZIP64_EXTRA_ID) {
+                int pos = off;
+                if (entry.size == 0xFFFFFFFFL && pos + 8 <= off + size) {
+                    entry.size = getLong(b, pos);
+                    pos += 8;
+                }
+                if (entry.compressedSize == 0xFFFFFFFFL && pos + 8 <= off + size) {
+                    entry.compressedSize = getLong(b, pos);
+                    pos += 8;
+                }
+                if (entry.localHeaderOffset == 0xFFFFFFFFL && pos + 8 <= off + size)
+                    entry.localHeaderOffset = getLong(b, pos);
+                return;
+            }
+            off += size;
+        }
+    }
+
+    private static String decodeName(byte[] b, int off, int len) throws UnsupportedEncodingException {
+        return new String(b, off, len, "UTF-8");
+    }
+
+    static int getShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+    }
+
+    static int getInt(byte[] b, int off) {
+        return getShort(b, off) | (getShort(b, off + 2) << 16);
+    }
+
+    static long getUInt(byte[] b, int off) {
+        return getInt(b, off) & 0xFFFFFFFFL;
+    }
+
+    static long getLong(byte[] b, int off) {
+        return getUInt(b, off) | (getUInt(b, off + 4) << 32);
+    }
+
+    /**
+     * Converts an MS-DOS date and time, as stored in zip headers, to Java time.
+     */
+    static long dosToJavaTime(long dosTime) {
+        @SuppressWarnings("deprecation")
+        java.util.Date d = new java.util.Date(
+            (int) (((dosTime >> 25) & 0x7f) + 80),
+            (int) (((dosTime >> 21) & 0x0f) - 1),
+            (int) ((dosTime >> 16) & 0x1f),
+            (int) ((dosTime >> 11) & 0x1f),
+            (int) ((dosTime >> 5) & 0x3f),
+            (int) ((dosTime << 1) & 0x3e));
+        return d.getTime();
+    }
+
+    /**
+     * Reads a range of the archive.
+     */
+    private class RawInputStream extends InputStream
+    {
+        private long pos;
+        private long remaining;
+
+        RawInputStream(long pos, long length) {
+            this.pos = pos;
+            this.remaining = length;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0)
+                return -1;
+            int n = (int) Math.min(len, remaining);
+            readFully(pos, b, off, n);
+            pos += n;
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Inflates a deflated entry, with an Inflater of its own since the stream may be read on any
+     * thread.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream
+    {
+        private final String name;
+        private boolean padded;
+
+        EntryInflaterInputStream(InputStream in, String name) {
+            super(in, new Inflater(true), CHUNK_SIZE);
+            this.name = name;
+        }
+
+        protected void fill() throws IOException {
+            len = in.read(buf, 0, buf.length);
+            if (len < 0) {
+                // The inflater needs an extra dummy byte when the zlib header and trailer are
+                // omitted.
+                if (padded)
+                    throw new ZipException("Invalid compressed data for " + name);
+                buf[0] = 0;
+                len = 1;
+                padded = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    /**
+     * Checks the data of an entry against its CRC when the end is reached.
+     */
+    private static class EntryCheckedInputStream extends CheckedInputStream
+    {
+        private final Entry entry;
+
+        EntryCheckedInputStream(InputStream in, Entry entry) {
+            super(in, new CRC32());
+            this.entry = entry;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0)
+                check();
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0)
+                check();
+            return n;
+        }
+
+        private void check() throws ZipException {
+            if (getChecksum().getValue() != entry.crc)
+                throw new ZipException("Invalid CRC for " + entry.name);
+        }
+    }
+
+    /**
+     * An entry of the central directory.
+     */
+    public static class Entry
+    {
+        String name;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+        volatile long dataOffset = -1;
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * Returns the compression method, either {@link ZipEntry#STORED} or {@link
+         * ZipEntry#DEFLATED}.
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getTime() {
+            return dosToJavaTime(dosTime);
+        }
+    }
+}
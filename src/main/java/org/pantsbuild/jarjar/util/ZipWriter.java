@@ -0,0 +1,453 @@
+package org.pantsbuild.jarjar.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive whose entries are either compressed by the writer, compressed ahead of
+ * time with {@link #compress}, or copied, still compressed, from a {@link ZipReader}. Entries are
+ * deflated at any level, or stored, see {@link CompressionPolicy}.
+ * <p>
+ * Sizes and checksums are known before an entry is written, except for the compressed size of an
+ * entry deflated from a stream, which follows its data in a data descriptor. Like {@link java.util.jar.JarOutputStream}, the first entry carries the jar marker extra
+ * field. Zip64 records are written only when the archive needs them.
+ */
+public class ZipWriter
+{
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int JAR_MAGIC = 0xCAFE;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x8;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int CHUNK_SIZE = 0x10000;
+
+    // A deflater per level, indexed by the level plus one, created as needed.
+    private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>() {
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+    };
+
+    // Room to deflate into, grown to fit the largest entry seen by the thread.
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[0x10000];
+        }
+    };
+
+    private final OutputStream out;
+    private final List<Record> records = new ArrayList<Record>();
+    private final Calendar calendar = Calendar.getInstance();
+    private final byte[] header = new byte[64];
+    private long written;
+
+    public ZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes an entry, deflating the data at the default level unless it is empty.
+     */
+    public void write(String name, long time, byte[] data, int off, int len) throws IOException {
+        write(name, time, data, off, len, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Writes an entry, deflating the data at the given level unless it is empty or the level is
+     * {@link CompressionPolicy#STORED}.
+     */
+    public void write(String name, long time, byte[] data, int off, int len, int level)
+        throws IOException {
+        write(name, time, deflate(data, off, len, level));
+    }
+
+    /**
+     * Writes an entry whose data was compressed ahead of time.
+     */
+    public void write(String name, long time, Compressed data) throws IOException {
+        Record record = createRecord(name, time);
+        record.method = data.method;
+        record.crc = data.crc;
+        record.size = data.size;
+        record.compressedSize = data.length;
+        writeLocalHeader(record);
+        writeBytes(data.bytes, data.offset, data.length);
+    }
+
+    /**
+     * Writes an entry read from a stream, so that it never has to be in memory as a whole. The
+     * size and CRC of the data must be known in advance, as from the central directory of the
+     * archive it is read from. Stored data is copied as it is; deflated data is followed by a data
+     * descriptor, since its compressed size is only known at the end.
+     *
+     * @throws ZipException if the stream does not hold exactly <code>size</code> bytes
+     */
+    public void write(String name, long time, InputStream in, long size, long crc, int level)
+        throws IOException {
+        boolean stored = size == 0 || level == CompressionPolicy.STORED;
+        Deflater deflater = stored ? null : getDeflater(level);
+        Record record = createRecord(name, time);
+        record.crc = crc;
+        record.size = size;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long read = 0;
+        if (stored) {
+            record.method = ZipEntry.STORED;
+            record.compressedSize = size;
+            writeLocalHeader(record);
+            for (int n; (n = in.read(chunk, 0, chunk.length)) >= 0; ) {
+                read += n;
+                if (read > size)
+                    break;
+                writeBytes(chunk, 0, n);
+            }
+        } else {
+            record.method = ZipEntry.DEFLATED;
+            record.flags |= FLAG_DATA_DESCRIPTOR;
+            writeLocalHeader(record);
+            byte[] buf = BUFFER.get();
+            for (int n; (n = in.read(chunk, 0, chunk.length)) >= 0; ) {
+                read += n;
+                if (read > size)
+                    break;
+                deflater.setInput(chunk, 0, n);
+                while (!deflater.needsInput())
+                    record.compressedSize += drain(deflater, buf);
+            }
+            deflater.finish();
+            while (!deflater.finished())
+                record.compressedSize += drain(deflater, buf);
+        }
+        if (read != size)
+            throw new ZipException("Unexpected size for " + name + ": expected " + size);
+        if (!stored)
+            writeDataDescriptor(record);
+    }
+
+    private int drain(Deflater deflater, byte[] buf) throws IOException {
+        int n = deflater.deflate(buf, 0, buf.length);
+        writeBytes(buf, 0, n);
+        return n;
+    }
+
+    /**
+     * Compresses data for {@link #write(String, long, Compressed)}, as for {@link #write(String,
+     * long, byte[], int, int, int)}. Safe to call from any thread, so that entries can be
+     * compressed in parallel and written in order. Stored data is not copied, so it must not
+     * change until it is written.
+     */
+    public static Compressed compress(byte[] data, int off, int len, int level) {
+        Compressed compressed = deflate(data, off, len, level);
+        if (compressed.method == ZipEntry.STORED)
+            return compressed;
+        return new Compressed(compressed.method, compressed.crc, compressed.size,
+                              Arrays.copyOf(compressed.bytes, compressed.length), 0,
+                              compressed.length);
+    }
+
+    /**
+     * Deflates data into a buffer of the calling thread, which is only valid until the thread
+     * next deflates something. Stored data is left where it is.
+     */
+    private static Compressed deflate(byte[] data, int off, int len, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        if (len == 0 || level == CompressionPolicy.STORED)
+            return new Compressed(ZipEntry.STORED, crc.getValue(), len, data, off, len);
+        Deflater deflater = getDeflater(level);
+        byte[] buf = BUFFER.get();
+        int bound = len + (len >> 12) + (len >> 14) + 64;
+        if (buf.length < bound) {
+            buf = new byte[bound];
+            BUFFER.set(buf);
+        }
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        int clen = 0;
+        while (!deflater.finished()) {
+            if (clen == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                BUFFER.set(buf);
+            }
+            clen += deflater.deflate(buf, clen, buf.length - clen);
+        }
+        return new Compressed(ZipEntry.DEFLATED, crc.getValue(), len, buf, 0, clen);
+    }
+
+    /**
+     * Returns the calling thread's deflater for a level, ready for new data.
+     */
+    private static Deflater getDeflater(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[level + 1];
+        if (deflater == null)
+            deflater = deflaters[level + 1] = new Deflater(level, true);
+        deflater.reset();
+        return deflater;
+    }
+
+    /**
+     * Copies an entry from another archive without inflating it. The name and time may differ
+     * from those of the original entry.
+     */
+    public void copy(String name, long time, ZipReader reader, ZipReader.Entry entry)
+        throws IOException {
+        Record record = createRecord(name, time);
+        record.method = entry.getMethod();
+        record.crc = entry.getCrc();
+        record.compressedSize = entry.getCompressedSize();
+        record.size = entry.getSize();
+        writeLocalHeader(record);
+        reader.copyRaw(entry, out);
+        written += record.compressedSize;
+    }
+
+    /**
+     * Writes the central directory and closes the underlying stream.
+     */
+    public void close() throws IOException {
+        try {
+            long cenOffset = written;
+            for (Record record : records)
+                writeCentralHeader(record);
+            writeEnd(cenOffset, written - cenOffset);
+        } finally {
+            out.close();
+        }
+    }
+
+    private Record createRecord(String name, long time) throws IOException {
+        Record record = new Record();
+        record.name = name.getBytes("UTF-8");
+        if (record.name.length != name.length())
+            record.flags |= FLAG_UTF8;
+        record.dosTime = javaToDosTime(time);
+        record.offset = written;
+        record.jarMarker = records.isEmpty();
+        records.add(record);
+        return record;
+    }
+
+    private void writeLocalHeader(Record record) throws IOException {
+        // With a data descriptor the checksum and sizes are left zero here, and the descriptor
+        // holds them in eight bytes each if they need zip64, as ZipOutputStream does.
+        boolean descriptor = (record.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        boolean zip64 = !descriptor
+            && (record.size >= ZIP64_MAGIC || record.compressedSize >= ZIP64_MAGIC);
+        int extraLen = (record.jarMarker ? 4 : 0) + (zip64 ? 20 : 0);
+        putInt(0, LOCAL_HEADER_SIG);
+        putShort(4, zip64 ? 45 : versionNeeded(record));
+        putShort(6, record.flags);
+        putShort(8, record.method);
+        putInt(10, (int) record.dosTime);
+        putInt(14, descriptor ? 0 : (int) record.crc);
+        putInt(18, descriptor ? 0 : (int) (zip64 ? ZIP64_MAGIC : record.compressedSize));
+        putInt(22, descriptor ? 0 : (int) (zip64 ? ZIP64_MAGIC : record.size));
+        putShort(26, record.name.length);
+        putShort(28, extraLen);
+        writeBytes(header, 0, 30);
+        writeBytes(record.name, 0, record.name.length);
+        int len = 0;
+        if (record.jarMarker) {
+            putShort(len, JAR_MAGIC);
+            putShort(len + 2, 0);
+            len += 4;
+        }
+        if (zip64) {
+            putShort(len, ZIP64_EXTRA_ID);
+            putShort(len + 2, 16);
+            putLong(len + 4, record.size);
+            putLong(len + 12, record.compressedSize);
+            len += 20;
+        }
+        writeBytes(header, 0, len);
+    }
+
+    private void writeDataDescriptor(Record record) throws IOException {
+        putInt(0, DATA_DESCRIPTOR_SIG);
+        putInt(4, (int) record.crc);
+        if (record.size >= ZIP64_MAGIC || record.compressedSize >= ZIP64_MAGIC) {
+            putLong(8, record.compressedSize);
+            putLong(16, record.size);
+            writeBytes(header, 0, 24);
+        } else {
+            putInt(8, (int) record.compressedSize);
+            putInt(12, (int) record.size);
+            writeBytes(header, 0, 16);
+        }
+    }
+
+    private void writeCentralHeader(Record record) throws IOException {
+        int zip64Len = 0;
+        if (record.size >= ZIP64_MAGIC)
+            zip64Len += 8;
+        if (record.compressedSize >= ZIP64_MAGIC)
+            zip64Len += 8;
+        if (record.offset >= ZIP64_MAGIC)
+            zip64Len += 8;
+        int extraLen = (record.jarMarker ? 4 : 0) + (zip64Len > 0 ? 4 + zip64Len : 0);
+        putInt(0, CENTRAL_HEADER_SIG);
+        putShort(4, zip64Len > 0 ? 45 : versionNeeded(record));
+        putShort(6, zip64Len > 0 ? 45 : versionNeeded(record));
+        putShort(8, record.flags);
+        putShort(10, record.method);
+        putInt(12, (int) record.dosTime);
+        putInt(16, (int) record.crc);
+        putInt(20, (int) Math.min(record.compressedSize, ZIP64_MAGIC));
+        putInt(24, (int) Math.min(record.size, ZIP64_MAGIC));
+        putShort(28, record.name.length);
+        putShort(30, extraLen);
+        putShort(32, 0); // comment length
+        putShort(34, 0); // disk number
+        putShort(36, 0); // internal attributes
+        putInt(38, 0); // external attributes
+        putInt(42, (int) Math.min(record.offset, ZIP64_MAGIC));
+        writeBytes(header, 0, 46);
+        writeBytes(record.name, 0, record.name.length);
+        int len = 0;
+        if (record.jarMarker) {
+            putShort(len, JAR_MAGIC);
+            putShort(len + 2, 0);
+            len += 4;
+        }
+        if (zip64Len > 0) {
+            putShort(len, ZIP64_EXTRA_ID);
+            putShort(len + 2, zip64Len);
+            len += 4;
+            if (record.size >= ZIP64_MAGIC) {
+                putLong(len, record.size);
+                len += 8;
+            }
+            if (record.compressedSize >= ZIP64_MAGIC) {
+                putLong(len, record.compressedSize);
+                len += 8;
+            }
+            if (record.offset >= ZIP64_MAGIC) {
+                putLong(len, record.offset);
+                len += 8;
+            }
+        }
+        writeBytes(header, 0, len);
+    }
+
+    private void writeEnd(long cenOffset, long cenSize) throws IOException {
+        int count = records.size();
+        if (count >= 0xFFFF || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC) {
+            long end64Offset = written;
+            putInt(0, ZIP64_END_SIG);
+            putLong(4, 44); // size of the remaining record
+            putShort(12, 45); // version made by
+            putShort(14, 45); // version needed
+            putInt(16, 0); // disk number
+            putInt(20, 0); // disk with the central directory
+            putLong(24, count);
+            putLong(32, count);
+            putLong(40, cenSize);
+            putLong(48, cenOffset);
+            writeBytes(header, 0, 56);
+            putInt(0, ZIP64_LOCATOR_SIG);
+            putInt(4, 0); // disk with the zip64 end record
+            putLong(8, end64Offset);
+            putInt(16, 1); // total disks
+            writeBytes(header, 0, 20);
+        }
+        putInt(0, END_SIG);
+        putShort(4, 0); // disk number
+        putShort(6, 0); // disk with the central directory
+        putShort(8, Math.min(count, 0xFFFF));
+        putShort(10, Math.min(count, 0xFFFF));
+        putInt(12, (int) Math.min(cenSize, ZIP64_MAGIC));
+        putInt(16, (int) Math.min(cenOffset, ZIP64_MAGIC));
+        putShort(20, 0); // comment length
+        writeBytes(header, 0, 22);
+    }
+
+    private static int versionNeeded(Record record) {
+        return record.method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    private long javaToDosTime(long time) {
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((long) (year - 1980) << 25)
+            | ((calendar.get(Calendar.MONTH) + 1) << 21)
+            | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+            | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+            | (calendar.get(Calendar.MINUTE) << 5)
+            | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void putShort(int off, int v) {
+        header[off] = (byte) v;
+        header[off + 1] = (byte) (v >> 8);
+    }
+
+    private void putInt(int off, int v) {
+        putShort(off, v);
+        putShort(off + 2, v >> 16);
+    }
+
+    private void putLong(int off, long v) {
+        putInt(off, (int) v);
+        putInt(off + 4, (int) (v >> 32));
+    }
+
+    /**
+     * The data of an entry as it is stored in the archive, along with its checksum and size.
+     */
+    public static class Compressed
+    {
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] bytes;
+        final int offset;
+        final int length;
+
+        Compressed(int method, long crc, long size, byte[] bytes, int offset, int length) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Record
+    {
+        byte[] name;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+        boolean jarMarker;
+    }
+}
@@ -0,0 +1,39 @@
+package org.pantsbuild.jarjar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.pantsbuild.jarjar.util.BufferPool;
+
+public class BufferPoolTest extends TestCase {
+
+  @Test
+  public void testRoundsUpAndReuses() {
+    BufferPool pool = new BufferPool(1 << 20);
+    byte[] a = pool.acquire(3000);
+    assertEquals(4096, a.length);
+    pool.release(a);
+    assertSame(a, pool.acquire(2049));
+    assertNotSame(a, pool.acquire(4096));
+    assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+  }
+
+  @Test
+  public void testLargeArraysAreNotPooled() {
+    BufferPool pool = new BufferPool(1 << 30);
+    byte[] a = pool.acquire(BufferPool.MAX_SIZE + 1);
+    assertEquals(BufferPool.MAX_SIZE + 1, a.length);
+    pool.release(a);
+    assertNotSame(a, pool.acquire(BufferPool.MAX_SIZE + 1));
+  }
+
+  @Test
+  public void testBoundsCapacity() {
+    BufferPool pool = new BufferPool(8192);
+    byte[] a = pool.acquire(8192);
+    byte[] b = pool.acquire(8192);
+    pool.release(a);
+    pool.release(b);
+    assertSame(a, pool.acquire(8192));
+    assertNotSame(b, pool.acquire(8192));
+  }
+}
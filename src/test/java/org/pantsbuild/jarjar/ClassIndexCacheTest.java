@@ -0,0 +1,53 @@
+package org.pantsbuild.jarjar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ClassIndexCacheTest extends TestCase {
+
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("index", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  private static void writeFile(File file, String contents) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test
+  public void testReadsBackUntilJarChanges() throws IOException {
+    File dir = createTempDir();
+    File jar = new File(dir, "lib.jar");
+    writeFile(jar, "first");
+    jar.setLastModified(1000000000000L);
+
+    ClassIndexCache cache = new ClassIndexCache(new File(dir, "cache"));
+    assertNull(cache.read(jar));
+    List<String> names = Arrays.asList("org/example/b/B", "org/example/a/A", "org/example/a/AB");
+    cache.write(jar, names);
+    List<String> read = cache.read(jar);
+    assertEquals(3, read.size());
+    assertTrue(read.containsAll(names));
+
+    // Touched but unchanged
+    jar.setLastModified(1000000005000L);
+    assertEquals(3, cache.read(jar).size());
+
+    writeFile(jar, "other");
+    jar.setLastModified(1000000010000L);
+    assertNull(cache.read(jar));
+  }
+}
@@ -0,0 +1,47 @@
+package org.pantsbuild.jarjar;
+
+import java.util.zip.Deflater;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.pantsbuild.jarjar.util.CompressionPolicy;
+
+public class CompressionPolicyTest extends TestCase {
+
+  @Test
+  public void testDefault() {
+    assertEquals(Deflater.DEFAULT_COMPRESSION, CompressionPolicy.DEFAULT.getLevel("a/B.class"));
+    assertEquals(CompressionPolicy.STORED, CompressionPolicy.parse("stored").getLevel("a/B.class"));
+    assertEquals(1, CompressionPolicy.parse(" 1 ").getLevel("a/B.class"));
+  }
+
+  @Test
+  public void testPatterns() {
+    CompressionPolicy policy = CompressionPolicy.parse("1,*.png=stored,lib/*.jar=stored,a*b*c=9");
+    assertEquals(CompressionPolicy.STORED, policy.getLevel("img/x.png"));
+    assertEquals(CompressionPolicy.STORED, policy.getLevel("lib/x.jar"));
+    assertEquals(1, policy.getLevel("x.jar"));
+    assertEquals(9, policy.getLevel("abc"));
+    assertEquals(9, policy.getLevel("a/b/c"));
+    assertEquals(1, policy.getLevel("acb"));
+    assertEquals(1, policy.getLevel("img/x.png.txt"));
+  }
+
+  @Test
+  public void testFirstMatchWins() {
+    CompressionPolicy policy = CompressionPolicy.parse("*.gz=stored,*=3");
+    assertEquals(CompressionPolicy.STORED, policy.getLevel("a.gz"));
+    assertEquals(3, policy.getLevel("a.txt"));
+  }
+
+  @Test
+  public void testInvalid() {
+    for (String policy : new String[] { "10", "fast", "1,2", "=stored", "*.png=" }) {
+      try {
+        CompressionPolicy.parse(policy);
+        fail(policy);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.pantsbuild.jarjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.pantsbuild.jarjar.util.EntryStruct;
+import org.pantsbuild.jarjar.util.IoUtil;
+
+public class ConstantPoolRewriterTest extends TestCase {
+
+  private static byte[] readResource(String name) throws IOException {
+    InputStream in = ConstantPoolRewriterTest.class.getResourceAsStream(name);
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      IoUtil.pipe(in, baos, new byte[0x2000]);
+      return baos.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static EntryStruct createStruct(String resource) throws IOException {
+    EntryStruct struct = new EntryStruct();
+    struct.name = resource.substring(1);
+    struct.data = readResource(resource);
+    return struct;
+  }
+
+  private static PackageRemapper createRemapper(String pattern, String result) {
+    Rule rule = new Rule();
+    rule.setPattern(pattern);
+    rule.setResult(result);
+    return new PackageRemapper(Arrays.asList(rule), false);
+  }
+
+  private static byte[] writeWithAsm(byte[] data, PackageRemapper pr) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    ClassVisitor visitor = (pr != null) ? new ClassRemapper(writer, pr) : writer;
+    new ClassReader(data).accept(visitor, ClassReader.EXPAND_FRAMES);
+    return writer.toByteArray();
+  }
+
+  @Test
+  public void testMatchesAsm() throws IOException {
+    // Uses annotations, generics, inner classes and local variable tables.
+    PackageRemapper pr = createRemapper("org.objectweb.asm.**", "shaded.asm.@1");
+    for (String resource : Arrays.asList(
+        "/org/pantsbuild/jarjar/KeepProcessor.class",
+        "/org/pantsbuild/jarjar/ConstantPoolRewriterTest.class",
+        "/org/pantsbuild/jarjar/util/JarTransformer.class")) {
+      EntryStruct struct = createStruct(resource);
+      byte[] rewritten = new ConstantPoolRewriter(pr).rewrite(struct);
+      assertNotNull(resource, rewritten);
+      assertTrue(resource, Arrays.equals(writeWithAsm(struct.data, pr), writeWithAsm(rewritten, null)));
+    }
+  }
+
+  @Test
+  public void testUnchanged() throws IOException {
+    EntryStruct struct = createStruct("/org/pantsbuild/jarjar/Wildcard.class");
+    PackageRemapper pr = createRemapper("com.example.**", "shaded.@1");
+    assertSame(struct.data, new ConstantPoolRewriter(pr).rewrite(struct));
+  }
+
+  @Test
+  public void testFallsBackForMethodSignatures() throws IOException {
+    EntryStruct struct = createStruct("/org/pantsbuild/jarjar/BigtableIO$Write.class");
+    PackageRemapper pr = createRemapper("com.google.**", "com.googleshaded.@1");
+    assertNull(new ConstantPoolRewriter(pr).rewrite(struct));
+  }
+}
@@ -0,0 +1,144 @@
+package org.pantsbuild.jarjar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class DepFindTest extends TestCase {
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("depfind", "");
+    assertTrue(dir.delete() && dir.mkdir());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  /**
+   * Creates a class whose only references to the space-separated classes in <code>uses</code>
+   * are made in the body of a method.
+   */
+  private static byte[] createClass(String name, String uses) {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+    MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "run", "()V", null, null);
+    mv.visitCode();
+    if (uses != null) {
+      for (String use : uses.split(" "))
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, use, "run", "()V", false);
+    }
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private static byte[] createModule(String name) {
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(Opcodes.V9, Opcodes.ACC_MODULE, "module-info", null, null, null);
+    cw.visitModule(name, 0, null).visitEnd();
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /**
+   * Creates a jar of the given classes, each followed by the classes its method uses. A
+   * <code>module-info</code> is followed by the name of the module instead.
+   */
+  private String createJar(String name, String... entries) throws IOException {
+    File file = new File(dir, name);
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+    try {
+      for (int i = 0; i < entries.length; i += 2) {
+        out.putNextEntry(new JarEntry(entries[i] + ".class"));
+        if (entries[i].equals("module-info"))
+          out.write(createModule(entries[i + 1]));
+        else
+          out.write(createClass(entries[i], entries[i + 1]));
+      }
+    } finally {
+      out.close();
+    }
+    return file.getPath();
+  }
+
+  private static String find(int level, int parallelism, String from, String to)
+      throws IOException {
+    StringWriter result = new StringWriter();
+    PrintWriter w = new PrintWriter(result);
+    DepFind depFind = new DepFind();
+    depFind.setLevel(level);
+    depFind.setParallelism(parallelism);
+    depFind.run(from, to, new TextDepHandler(w, level));
+    w.flush();
+    return result.toString();
+  }
+
+  @Test
+  public void testFindsReferencesInMethodBodies() throws IOException {
+    String a = createJar("a.jar", "a/A", "b/B");
+    String b = createJar("b.jar", "b/B", null);
+    String cp = a + File.pathSeparator + b;
+    assertEquals("a/A -> b/B\n", find(DepHandler.LEVEL_CLASS, 1, a, b).replace("\r", ""));
+    assertEquals("a/A -> b/B\n", find(DepHandler.LEVEL_CLASS, 1, cp, cp).replace("\r", ""));
+  }
+
+  @Test
+  public void testIgnoresModuleInfo() throws IOException {
+    String a = createJar("a.jar", "module-info", "a", "a/A", "b/B");
+    String b = createJar("b.jar", "module-info", "b", "b/B", null);
+    String c = createJar("c.jar", "module-info", "c", "c/C", null);
+    String cp = a + File.pathSeparator + b + File.pathSeparator + c;
+    String to = b + File.pathSeparator + c;
+    for (int parallelism : new int[] { 1, 3 }) {
+      assertEquals("a/A -> b/B\n",
+          find(DepHandler.LEVEL_CLASS, parallelism, cp, cp).replace("\r", ""));
+      assertEquals("a/A -> b/B\n",
+          find(DepHandler.LEVEL_CLASS, parallelism, a, to).replace("\r", ""));
+      assertEquals(a + " -> " + b + "\n",
+          find(DepHandler.LEVEL_JAR, parallelism, cp, cp).replace("\r", ""));
+      assertEquals(a + " -> " + b + "\n",
+          find(DepHandler.LEVEL_JAR, parallelism, a, to).replace("\r", ""));
+    }
+  }
+
+  @Test
+  public void testSameResultsWithParallelismAndClasspaths() throws IOException {
+    String a = createJar("a.jar", "a/A", "b/B c/C", "a/A2", "d/D x/Missing");
+    String b = createJar("b.jar", "b/B", "a/A", "b/Dup", null);
+    String c = createJar("c.jar", "module-info", "c", "c/C", "b/Dup d/D a/A2");
+    String d = createJar("d.jar", "d/D", null, "b/Dup", "c/C");
+    String sep = File.pathSeparator;
+    String cp = a + sep + b + sep + c + sep + d;
+    String to = b + sep + c + sep + d;
+    for (int level : new int[] { DepHandler.LEVEL_CLASS, DepHandler.LEVEL_JAR }) {
+      String expected = find(level, 1, cp, cp);
+      assertTrue(expected.length() > 0);
+      String expectedTo = find(level, 1, a, to);
+      assertTrue(expectedTo.length() > 0);
+      for (int parallelism : new int[] { 1, 2, 4 }) {
+        assertEquals(expected, find(level, parallelism, cp, cp));
+        // The trailing separator makes the classpaths differ without changing the elements.
+        assertEquals(expected, find(level, parallelism, cp, cp + sep));
+        assertEquals(expectedTo, find(level, parallelism, a, to));
+      }
+    }
+  }
+}
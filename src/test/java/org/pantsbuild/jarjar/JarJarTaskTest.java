@@ -0,0 +1,135 @@
+package org.pantsbuild.jarjar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import junit.framework.TestCase;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Jar;
+import org.apache.tools.ant.types.ZipFileSet;
+import org.junit.Test;
+import org.pantsbuild.jarjar.util.IoUtil;
+
+public class JarJarTaskTest extends TestCase {
+
+  private static final String PACKAGE = "org/pantsbuild/jarjar/";
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("jarjartask", "");
+    assertTrue(dir.delete() && dir.mkdir());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  private File createInput() throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().putValue("Input-Attribute", "kept");
+    File file = new File(dir, "in.jar");
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest);
+    try {
+      for (Class<?> c : new Class<?>[] {
+          MemberGraphTest.Root.class, MemberGraphTest.Base.class, MemberGraphTest.Impl.class,
+          MemberGraphTest.Other.class }) {
+        String name = c.getName().replace('.', '/') + ".class";
+        out.putNextEntry(new JarEntry(name));
+        InputStream in = c.getResourceAsStream("/" + name);
+        try {
+          IoUtil.pipe(in, out, new byte[0x2000]);
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private JarJarTask createTask(File in, File out, String filesetManifest) {
+    Project project = new Project();
+    project.init();
+    JarJarTask task = new JarJarTask();
+    task.setProject(project);
+    task.setDestFile(out);
+    Jar.FilesetManifestConfig config = new Jar.FilesetManifestConfig();
+    config.setValue(filesetManifest);
+    task.setFilesetmanifest(config);
+    ZipFileSet fileset = new ZipFileSet();
+    fileset.setSrc(in);
+    task.addZipfileset(fileset);
+    Rule rule = new Rule();
+    rule.setPattern("org.pantsbuild.jarjar.**");
+    rule.setResult("shaded.@1");
+    task.addConfiguredRule(rule);
+    return task;
+  }
+
+  @Test
+  public void testMergeManifest() throws IOException {
+    File out = new File(dir, "out.jar");
+    createTask(createInput(), out, "merge").execute();
+    JarFile jar = new JarFile(out);
+    try {
+      assertNotNull(jar.getEntry("shaded/MemberGraphTest$Root.class"));
+      assertNull(jar.getEntry(PACKAGE + "MemberGraphTest$Root.class"));
+      assertEquals("kept", jar.getManifest().getMainAttributes().getValue("Input-Attribute"));
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Test
+  public void testMergeManifestWithKeepRules() throws IOException {
+    File out = new File(dir, "out.jar");
+    JarJarTask task = createTask(createInput(), out, "merge");
+    Keep keep = new Keep();
+    keep.setPattern("org.pantsbuild.jarjar.MemberGraphTest$Root");
+    task.addConfiguredKeep(keep);
+    task.setShrinkMembers(true);
+    task.execute();
+    JarFile jar = new JarFile(out);
+    try {
+      assertNotNull(jar.getEntry("shaded/MemberGraphTest$Root.class"));
+      assertNotNull(jar.getEntry("shaded/MemberGraphTest$Impl.class"));
+      assertNull(jar.getEntry("shaded/MemberGraphTest$Other.class"));
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Test
+  public void testMergeManifestWithCompression() throws IOException {
+    File out = new File(dir, "out.jar");
+    JarJarTask task = createTask(createInput(), out, "merge");
+    task.setCompression("1,*.class=stored");
+    task.execute();
+    JarFile jar = new JarFile(out);
+    try {
+      for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+        JarEntry entry = e.nextElement();
+        if (entry.getName().endsWith(".class"))
+          assertEquals(entry.getName(), ZipEntry.STORED, entry.getMethod());
+      }
+      assertEquals(ZipEntry.DEFLATED, jar.getEntry(JarFile.MANIFEST_NAME).getMethod());
+    } finally {
+      jar.close();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package org.pantsbuild.jarjar;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class LongHashSetTest extends TestCase {
+
+  @Test
+  public void testZero() {
+    LongHashSet set = new LongHashSet();
+    assertFalse(set.contains(0));
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.contains(0));
+    assertEquals(1, set.size());
+  }
+
+  @Test
+  public void testMatchesHashSet() {
+    LongHashSet set = new LongHashSet();
+    Set<Long> expected = new HashSet<Long>();
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      long value = ((long) random.nextInt(300) << 32) | random.nextInt(300);
+      assertEquals(expected.add(value), set.add(value));
+    }
+    assertEquals(expected.size(), set.size());
+    for (long value : expected)
+      assertTrue(set.contains(value));
+    assertFalse(set.contains(-1L));
+  }
+}
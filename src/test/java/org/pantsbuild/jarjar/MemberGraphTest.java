@@ -0,0 +1,121 @@
+package org.pantsbuild.jarjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.pantsbuild.jarjar.util.IoUtil;
+
+public class MemberGraphTest extends TestCase {
+
+  static class Root {
+    void run() {
+      Base base = new Impl();
+      base.go();
+    }
+  }
+
+  static abstract class Base {
+    int unusedField;
+
+    abstract void go();
+  }
+
+  static class Impl extends Base {
+    void go() {
+    }
+
+    void unused() {
+      new Other();
+    }
+  }
+
+  static class Other {
+  }
+
+  private static byte[] readClass(Class<?> c) throws IOException {
+    InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      IoUtil.pipe(in, baos, new byte[0x2000]);
+      return baos.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String name(Class<?> c) {
+    return c.getName().replace('.', '/');
+  }
+
+  @Test
+  public void testVirtualDispatch() throws IOException {
+    MemberGraph graph = new MemberGraph();
+    graph.add(readClass(Root.class), true);
+    for (Class<?> c : new Class<?>[] { Base.class, Impl.class, Other.class })
+      graph.add(readClass(c), false);
+    MemberGraph.Reachability reachability = graph.compute();
+
+    Set<String> classes = reachability.getUnreachableClasses();
+    assertTrue(classes.contains(name(Other.class)));
+    assertFalse(classes.contains(name(Impl.class)));
+
+    Map<String, Set<String>> members = reachability.getUnreachableMembers();
+    assertNull(members.get(name(Root.class)));
+    assertTrue(members.get(name(Base.class)).contains("unusedField I"));
+    assertFalse(members.get(name(Base.class)).contains("go ()V"));
+    assertTrue(members.get(name(Impl.class)).contains("unused ()V"));
+    assertFalse(members.get(name(Impl.class)).contains("go ()V"));
+  }
+
+  private static byte[] createClass(String name, String uses, String... methods) {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+    MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(Opcodes.ALOAD, 0);
+    mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    if (uses != null) {
+      mv.visitTypeInsn(Opcodes.NEW, uses);
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitMethodInsn(Opcodes.INVOKESPECIAL, uses, "<init>", "()V", false);
+      mv.visitInsn(Opcodes.POP);
+    }
+    mv.visitInsn(Opcodes.RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    for (String method : methods) {
+      int space = method.indexOf(' ');
+      mv = cw.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+          method.substring(0, space), method.substring(space + 1), null, null);
+      mv.visitCode();
+      mv.visitInsn(Opcodes.ACONST_NULL);
+      mv.visitInsn(Opcodes.ARETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  @Test
+  public void testKeepsLambdaDeserialization() {
+    String deserialize =
+        "$deserializeLambda$ (Ljava/lang/invoke/SerializedLambda;)Ljava/lang/Object;";
+    MemberGraph graph = new MemberGraph();
+    graph.add(createClass("Root", "Lambdas"), true);
+    graph.add(createClass("Lambdas", null, deserialize, "unused ()Ljava/lang/Object;"), false);
+    MemberGraph.Reachability reachability = graph.compute();
+
+    assertFalse(reachability.getUnreachableClasses().contains("Lambdas"));
+    Set<String> members = reachability.getUnreachableMembers().get("Lambdas");
+    assertTrue(members.contains("unused ()Ljava/lang/Object;"));
+    assertFalse(members.contains(deserialize));
+  }
+}
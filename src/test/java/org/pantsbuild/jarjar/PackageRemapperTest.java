@@ -61,6 +61,17 @@ extends TestCase
       assertEquals("foo/example.package-info", remapper.mapValue("org/example.package-info"));
     }
 
+    @Test
+    public void testGetLiteralPrefixes() {
+        assertEquals(Collections.singletonList("org/"), remapper.getLiteralPrefixes());
+
+        Rule rule = new Rule();
+        rule.setPattern("org.example.RES*");
+        rule.setResult("foo.@1");
+        PackageRemapper resources = new PackageRemapper(Collections.singletonList(rule), false);
+        assertEquals(Collections.singletonList("org/example/"), resources.getLiteralPrefixes());
+    }
+
     private void assertUnchangedValue(String value) {
         assertEquals(value, remapper.mapValue(value));
     }
@@ -0,0 +1,36 @@
+package org.pantsbuild.jarjar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class RemapperCacheTest extends TestCase {
+
+  @Test
+  public void testCountsHitsAndMisses() {
+    RemapperCache cache = new RemapperCache("Test cache", 1000, 100000, 100);
+    assertNull(cache.get("a"));
+    cache.put("a", "b");
+    assertEquals("b", cache.get("a"));
+    assertEquals("Test cache: 1 hits, 1 misses (50% hit rate), 1 entries", cache.toString());
+  }
+
+  @Test
+  public void testBoundsEntries() {
+    RemapperCache cache = new RemapperCache("Test cache", 160, 100000, 100);
+    for (int i = 0; i < 10000; i++)
+      cache.put("key" + i, "value" + i);
+    assertTrue(cache.size() <= 160);
+    assertEquals("value9999", cache.get("key9999"));
+  }
+
+  @Test
+  public void testBoundsLength() {
+    RemapperCache cache = new RemapperCache("Test cache", 1000, 1600, 10);
+    String longKey = "0123456789a";
+    cache.put(longKey, longKey);
+    assertNull(cache.get(longKey));
+    for (int i = 0; i < 1000; i++)
+      cache.put("k" + i, "0123456789");
+    assertTrue(cache.size() * 12 <= 1600);
+  }
+}
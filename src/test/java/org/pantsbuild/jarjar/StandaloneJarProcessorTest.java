@@ -0,0 +1,169 @@
+package org.pantsbuild.jarjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.pantsbuild.jarjar.util.CompressionPolicy;
+import org.pantsbuild.jarjar.util.EntryStruct;
+import org.pantsbuild.jarjar.util.IoUtil;
+import org.pantsbuild.jarjar.util.JarProcessor;
+import org.pantsbuild.jarjar.util.StandaloneJarProcessor;
+
+public class StandaloneJarProcessorTest extends TestCase {
+
+  private static final JarProcessor KEEP_ALL = new JarProcessor() {
+    public boolean process(EntryStruct struct) {
+      return true;
+    }
+  };
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("standalone", "");
+    assertTrue(dir.delete() && dir.mkdir());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  private static byte[] createData(int size, boolean random) {
+    byte[] data = new byte[size];
+    if (random) {
+      new Random(size).nextBytes(data);
+    } else {
+      for (int i = 0; i < size; i++)
+        data[i] = (byte) ("abcdefgh".charAt(i % 8) + i / 4096 % 3);
+    }
+    return data;
+  }
+
+  private static long crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  private static void putEntry(ZipOutputStream out, String name, int method, byte[] data)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+      entry.setCrc(crc(data));
+    }
+    out.putNextEntry(entry);
+    out.write(data);
+    out.closeEntry();
+  }
+
+  private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    InputStream in = zip.getInputStream(entry);
+    try {
+      IoUtil.pipe(in, out, new byte[0x2000]);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static void assertEntry(ZipFile zip, String name, int method, byte[] data)
+      throws IOException {
+    ZipEntry entry = zip.getEntry(name);
+    assertNotNull(name, entry);
+    assertEquals(name, method, entry.getMethod());
+    assertEquals(name, crc(data), entry.getCrc());
+    assertEquals(name, data.length, entry.getSize());
+    if (method == ZipEntry.STORED)
+      assertEquals(name, data.length, entry.getCompressedSize());
+    else
+      assertTrue(name, entry.getCompressedSize() < data.length);
+    assertTrue(name, Arrays.equals(data, read(zip, entry)));
+  }
+
+  /**
+   * Reads the archive from the start with the local headers and data descriptors only.
+   */
+  private static void assertReadableAsStream(File file, int count) throws IOException {
+    ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+    try {
+      byte[] buf = new byte[0x2000];
+      int entries = 0;
+      while (in.getNextEntry() != null) {
+        // ZipInputStream checks the CRC and sizes at the end of each entry.
+        while (in.read(buf, 0, buf.length) >= 0) {
+        }
+        entries++;
+      }
+      assertEquals(count, entries);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testCompressionPolicy() throws IOException {
+    byte[] text = createData(5000, false);
+    byte[] image = createData(200000, false);
+    byte[] jar = createData(3000, true);
+    // Resources this large are streamed rather than read into memory.
+    byte[] large = createData(3 << 20, false);
+    File in = new File(dir, "in.jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(in));
+    try {
+      putEntry(out, "a/", ZipEntry.STORED, new byte[0]);
+      putEntry(out, "a/small.txt", ZipEntry.STORED, text);
+      putEntry(out, "a/big.png", ZipEntry.DEFLATED, image);
+      putEntry(out, "a/deflated.txt", ZipEntry.DEFLATED, text);
+      putEntry(out, "a/lib.jar", ZipEntry.STORED, jar);
+      putEntry(out, "a/large.txt", ZipEntry.STORED, large);
+      putEntry(out, "a/large.png", ZipEntry.DEFLATED, large);
+      putEntry(out, "a/large.bin", ZipEntry.DEFLATED, large);
+    } finally {
+      out.close();
+    }
+
+    // With more than one thread the entries are compressed ahead of writing.
+    for (int parallelism : new int[] { 1, 4 }) {
+      File result = new File(dir, "out.jar");
+      StandaloneJarProcessor processor = new StandaloneJarProcessor(KEEP_ALL);
+      processor.setParallelism(parallelism);
+      processor.setCompressionPolicy(CompressionPolicy.parse("9,*.png=stored,*.jar=stored"));
+      processor.run(in, result);
+
+      ZipFile zip = new ZipFile(result);
+      try {
+        assertEquals(ZipEntry.STORED, zip.getEntry("a/").getMethod());
+        assertEntry(zip, "a/small.txt", ZipEntry.DEFLATED, text);
+        assertEntry(zip, "a/big.png", ZipEntry.STORED, image);
+        assertEntry(zip, "a/deflated.txt", ZipEntry.DEFLATED, text);
+        assertEntry(zip, "a/lib.jar", ZipEntry.STORED, jar);
+        assertEntry(zip, "a/large.txt", ZipEntry.DEFLATED, large);
+        assertEntry(zip, "a/large.png", ZipEntry.STORED, large);
+        assertEntry(zip, "a/large.bin", ZipEntry.DEFLATED, large);
+      } finally {
+        zip.close();
+      }
+      assertReadableAsStream(result, 8);
+    }
+  }
+}
@@ -16,6 +16,9 @@
 
 package org.pantsbuild.jarjar;
 
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.junit.Test;
 
 import junit.framework.TestCase;
@@ -38,6 +41,63 @@ extends TestCase
         wildcard("com/akka-config/cglib/**", "foo/@1", "com/akka-config/cglib/Bar/Baz", "foo/Bar/Baz");
     }
 
+    @Test
+    public void testDollarIsLiteral() {
+        wildcard("com/example/Outer$*", "shaded/@0", "com/example/Outer$Inner",
+            "shaded/com/example/Outer$Inner");
+        wildcard("com/example/Outer$*", "shaded/@0", "com/example/Outer", null);
+    }
+
+    @Test
+    public void testInvalidCharacters() {
+        wildcard("com/**", "foo/@1", "com/example/Obj ct", null);
+        wildcard("com/*", "foo/@1", "com/Obj;", null);
+        wildcard("com/**", "foo/@1", "com/example/package-info", "foo/example/package-info");
+    }
+
+    @Test
+    public void testMatchesRegex() {
+        String[] patterns = {
+            "a/**", "a/*", "a/*/b", "a/**/b", "*/b", "**/b", "a/*/**", "a/**/*", "a*/b*",
+            "a/*b*/**", "**/a/**", "a/*/*/*", "a-b/**", "a/*$b", "a/b",
+        };
+        String alphabet = "ab/-$. \u0085";
+        Random random = new Random(42);
+        for (String pattern : patterns) {
+            boolean hasGroup = pattern.indexOf('*') >= 0;
+            Wildcard wildcard = new Wildcard(pattern, hasGroup ? "x/@0/@1" : "x/@0/");
+            Pattern regex = Pattern.compile(toRegex(pattern));
+            for (int i = 0; i < 2000; i++) {
+                StringBuilder value = new StringBuilder();
+                for (int j = random.nextInt(8); j > 0; j--)
+                    value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                String expect = regexReplace(regex, value.toString());
+                assertEquals(pattern + " on " + value, expect, wildcard.replace(value.toString()));
+            }
+        }
+    }
+
+    /**
+     * The regular expression Wildcard used to be implemented with, kept as an oracle.
+     */
+    private static String toRegex(String pattern) {
+        String regex = pattern.replace("$", "\\$").replace("**", "(.+?)").replace("*", "([^/]+)");
+        regex = regex.replaceAll("\\+\\??\\)\\Z", "*)");
+        return "\\A" + regex + "\\Z";
+    }
+
+    private static String regexReplace(Pattern regex, String value) {
+        Matcher matcher = regex.matcher(value);
+        if (!matcher.matches())
+            return null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(Character.isJavaIdentifierPart(c) || c == '-' || c == '/'))
+                return null;
+        }
+        return "x/" + matcher.group(0) + "/" + (matcher.groupCount() > 0 ? matcher.group(1) : "");
+    }
+
     private void wildcard(String pattern, String result, String value, String expect) {
         Wildcard wc = new Wildcard(pattern, result);
         // System.err.println(wc);
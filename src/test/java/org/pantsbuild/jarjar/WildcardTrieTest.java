@@ -0,0 +1,33 @@
+package org.pantsbuild.jarjar;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class WildcardTrieTest extends TestCase {
+
+  @Test
+  public void testFirstMatchWins() {
+    WildcardTrie trie = new WildcardTrie(Arrays.asList(
+        new Wildcard("org/example/**", "first/@1"),
+        new Wildcard("org/example/sub/*", "second/@1"),
+        new Wildcard("org/**", "third/@1"),
+        new Wildcard("*/example/**", "fourth/@1/@2")));
+    assertEquals("first/sub/Foo", trie.replace("org/example/sub/Foo"));
+    assertEquals("third/other/Foo", trie.replace("org/other/Foo"));
+    assertEquals("fourth/com/Foo", trie.replace("com/example/Foo"));
+    assertNull(trie.replace("com/other/Foo"));
+    assertNull(trie.replace("or"));
+  }
+
+  @Test
+  public void testLaterRuleWithLongerPrefix() {
+    WildcardTrie trie = new WildcardTrie(Arrays.asList(
+        new Wildcard("org/example/*", "first/@1"),
+        new Wildcard("org/**", "second/@1")));
+    assertEquals("first/Foo", trie.replace("org/example/Foo"));
+    assertEquals("second/example/sub/Foo", trie.replace("org/example/sub/Foo"));
+    assertTrue(trie.matches("org/Foo"));
+    assertFalse(trie.matches("com/Foo"));
+  }
+}
@@ -0,0 +1,236 @@
+package org.pantsbuild.jarjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.pantsbuild.jarjar.util.CompressionPolicy;
+import org.pantsbuild.jarjar.util.IoUtil;
+import org.pantsbuild.jarjar.util.ZipReader;
+import org.pantsbuild.jarjar.util.ZipWriter;
+
+public class ZipReaderTest extends TestCase {
+
+  private static final long TIME = 1000000000000L;
+  private static final String NON_ASCII_NAME = "\u00fcber/\u65e5\u672c\u8a9e.txt";
+  private static final byte[] PREFIX = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes();
+
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("zipreader", ".zip");
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  private static byte[] createData(int size, boolean random) {
+    byte[] data = new byte[size];
+    if (random) {
+      new Random(size).nextBytes(data);
+    } else {
+      for (int i = 0; i < size; i++)
+        data[i] = (byte) ("abcdefgh".charAt(i % 8) + i / 4096 % 3);
+    }
+    return data;
+  }
+
+  private ZipReader open(byte[] archive, byte[] prefix) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(prefix);
+      out.write(archive);
+    } finally {
+      out.close();
+    }
+    return new ZipReader(file);
+  }
+
+  private static byte[] readStream(ZipReader reader, ZipReader.Entry entry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    InputStream in = reader.getInputStream(entry);
+    try {
+      IoUtil.pipe(in, out, new byte[0x2000]);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static void assertEntry(ZipReader reader, ZipReader.Entry entry, String name,
+                                  int method, byte[] data) throws IOException {
+    assertEquals(name, entry.getName());
+    assertEquals(name, method, entry.getMethod());
+    assertEquals(name, data.length, entry.getSize());
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    assertEquals(name, crc.getValue(), entry.getCrc());
+    assertTrue(name, Arrays.equals(data, reader.read(entry)));
+    assertTrue(name, Arrays.equals(data, readStream(reader, entry)));
+  }
+
+  private void testRoundTrip(byte[] prefix) throws IOException {
+    byte[] small = createData(5000, false);
+    byte[] random = createData(3000, true);
+    byte[] large = createData(3 << 20, false);
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ZipWriter writer = new ZipWriter(archive);
+    writer.write("dir/", TIME, new byte[0], 0, 0);
+    writer.write("stored.txt", TIME, small, 0, small.length, CompressionPolicy.STORED);
+    writer.write("deflated.txt", TIME, small, 0, small.length);
+    writer.write("random.bin", TIME, random, 0, random.length, 9);
+    writer.write("large.txt", TIME, large, 0, large.length, 1);
+    writer.write("large.bin", TIME, large, 0, large.length, CompressionPolicy.STORED);
+    writer.write(NON_ASCII_NAME, TIME, small, 0, small.length);
+    writer.close();
+
+    ZipReader reader = open(archive.toByteArray(), prefix);
+    try {
+      List<ZipReader.Entry> entries = reader.getEntries();
+      assertEquals(7, entries.size());
+      assertEntry(reader, entries.get(0), "dir/", ZipEntry.STORED, new byte[0]);
+      assertTrue(entries.get(0).isDirectory());
+      assertEntry(reader, entries.get(1), "stored.txt", ZipEntry.STORED, small);
+      assertEntry(reader, entries.get(2), "deflated.txt", ZipEntry.DEFLATED, small);
+      assertEntry(reader, entries.get(3), "random.bin", ZipEntry.DEFLATED, random);
+      assertEntry(reader, entries.get(4), "large.txt", ZipEntry.DEFLATED, large);
+      assertEntry(reader, entries.get(5), "large.bin", ZipEntry.STORED, large);
+      assertEntry(reader, entries.get(6), NON_ASCII_NAME, ZipEntry.DEFLATED, small);
+      assertEquals(TIME, entries.get(1).getTime());
+      assertTrue(entries.get(2).getCompressedSize() < small.length);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    testRoundTrip(new byte[0]);
+  }
+
+  @Test
+  public void testRoundTripWithPrependedData() throws IOException {
+    testRoundTrip(PREFIX);
+  }
+
+  private void testZip64EndRecord(byte[] prefix) throws IOException {
+    int count = 0x10000 + 10;
+    byte[] data = "data".getBytes();
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ZipWriter writer = new ZipWriter(archive);
+    for (int i = 0; i < count; i++)
+      writer.write("e" + i, TIME, data, 0, data.length, CompressionPolicy.STORED);
+    writer.close();
+
+    ZipReader reader = open(archive.toByteArray(), prefix);
+    try {
+      List<ZipReader.Entry> entries = reader.getEntries();
+      assertEquals(count, entries.size());
+      assertEntry(reader, entries.get(0), "e0", ZipEntry.STORED, data);
+      assertEntry(reader, entries.get(count - 1), "e" + (count - 1), ZipEntry.STORED, data);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testZip64EndRecord() throws IOException {
+    testZip64EndRecord(new byte[0]);
+  }
+
+  @Test
+  public void testZip64EndRecordWithPrependedData() throws IOException {
+    testZip64EndRecord(PREFIX);
+  }
+
+  /**
+   * Builds an archive of one stored entry whose central header keeps its sizes and offset in a
+   * zip64 extra field, as for an entry beyond 4 GB.
+   */
+  private static byte[] createZip64Archive(String name, byte[] data) throws IOException {
+    byte[] nameBytes = name.getBytes("UTF-8");
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ByteBuffer b = ByteBuffer.allocate(200 + 2 * nameBytes.length + data.length);
+    b.order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0);
+    b.putInt(0).putInt((int) crc.getValue()).putInt(-1).putInt(-1);
+    b.putShort((short) nameBytes.length).putShort((short) 20).put(nameBytes);
+    b.putShort((short) 1).putShort((short) 16).putLong(data.length).putLong(data.length);
+    b.put(data);
+    int cenOffset = b.position();
+    b.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0);
+    b.putShort((short) 0).putInt(0).putInt((int) crc.getValue()).putInt(-1).putInt(-1);
+    b.putShort((short) nameBytes.length).putShort((short) 28).putShort((short) 0);
+    b.putShort((short) 0).putShort((short) 0).putInt(0).putInt(-1).put(nameBytes);
+    b.putShort((short) 1).putShort((short) 24).putLong(data.length).putLong(data.length);
+    b.putLong(0);
+    int cenSize = b.position() - cenOffset;
+    b.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1);
+    b.putShort((short) 1).putInt(cenSize).putInt(cenOffset).putShort((short) 0);
+    return Arrays.copyOf(b.array(), b.position());
+  }
+
+  @Test
+  public void testZip64ExtraField() throws IOException {
+    byte[] data = "zip64".getBytes();
+    for (byte[] prefix : new byte[][] { new byte[0], PREFIX }) {
+      ZipReader reader = open(createZip64Archive("a.txt", data), prefix);
+      try {
+        assertEquals(1, reader.getEntries().size());
+        assertEntry(reader, reader.getEntries().get(0), "a.txt", ZipEntry.STORED, data);
+        assertEquals(data.length, reader.getEntries().get(0).getCompressedSize());
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidCrc() throws IOException {
+    // The large entry is streamed by getInputStream rather than read into memory.
+    for (int size : new int[] { 100, 3 << 20 }) {
+      byte[] data = createData(size, false);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ZipWriter writer = new ZipWriter(out);
+      writer.write("a.txt", TIME, data, 0, data.length, CompressionPolicy.STORED);
+      writer.close();
+      byte[] archive = out.toByteArray();
+      // The data follows the local header, the name and the jar marker of the first entry.
+      archive[30 + 5 + 4 + size / 2] ^= 1;
+
+      ZipReader reader = open(archive, new byte[0]);
+      try {
+        ZipReader.Entry entry = reader.getEntries().get(0);
+        try {
+          reader.read(entry);
+          fail();
+        } catch (ZipException e) {
+          // expected
+        }
+        try {
+          readStream(reader, entry);
+          fail();
+        } catch (ZipException e) {
+          // expected
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+}